@@ -0,0 +1,44 @@
+/**
+ * Benchmark
+ * One operation to be timed by <code>BenchmarkRunner</code> at a range of particle counts.
+ * <code>setUp</code> builds whatever the operation needs for a given count, untimed, and
+ * <code>run</code> performs the operation once.
+ * @author Russell Kaplan
+ *
+ */
+public abstract class Benchmark {
+
+	private String name;
+	private int maxCount;
+
+	/**
+	 * @param maxCount the largest particle count this benchmark is run at unless every count is asked for,
+	 * for operations that would take too long at larger ones
+	 */
+	public Benchmark(String name, int maxCount) {
+		this.name = name;
+		this.maxCount = maxCount;
+	}
+
+	/**
+	 * Prepares to run the operation on <code>count</code> particles from <code>scenario</code>.
+	 */
+	public abstract void setUp(String scenario, int count) throws Exception;
+
+	public abstract void run() throws Exception;
+
+	/**
+	 * Releases anything <code>setUp</code> created, such as threads or files.
+	 */
+	public void tearDown() throws Exception {
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxCount() {
+		return maxCount;
+	}
+
+}
@@ -0,0 +1,78 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BenchmarkFixtures
+ * Builds simulations of any size for benchmarks from the scenarios shipped with the simulator,
+ * by laying copies of a scenario out on a grid far enough apart that they barely interact.
+ * The result is the same on every run, so timings can be compared from one release to the next.
+ * @author Russell Kaplan
+ *
+ */
+public class BenchmarkFixtures {
+
+	final public static String[] SCENARIOS = {"demo", "three_planet_stable", "random"};
+
+	private static File scenarioDirectory = new File(".");
+
+	/**
+	 * @param directory where the shipped .orbital files are (the Simulator directory)
+	 */
+	public static void setScenarioDirectory(File directory) {
+		scenarioDirectory = directory;
+	}
+
+	public static SimulationState loadScenario(String scenario) throws IOException, ClassNotFoundException {
+		return SimulationState.load(new File(scenarioDirectory, scenario + ".orbital"));
+	}
+
+	/**
+	 * @return <code>count</code> particles made from copies of <code>scenario</code>, with their trails cleared
+	 */
+	public static List<Particle> particles(String scenario, int count) throws IOException, ClassNotFoundException {
+		List<Particle> original = loadScenario(scenario).getParticles();
+
+		double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for(Particle p : original) {
+			minX = Math.min(minX, p.getX());
+			maxX = Math.max(maxX, p.getX());
+			minY = Math.min(minY, p.getY());
+			maxY = Math.max(maxY, p.getY());
+		}
+		double spacing = 4 * Math.max(Math.max(maxX - minX, maxY - minY), 1);
+		int copies = (count + original.size() - 1) / original.size();
+		int columns = (int)Math.ceil(Math.sqrt(copies));
+
+		List<Particle> particles = new ArrayList<Particle>(count);
+		for(int c = 0; particles.size() < count; c++) {
+			double offsetX = (c % columns) * spacing;
+			double offsetY = (c / columns) * spacing;
+			for(int i = 0; i < original.size() && particles.size() < count; i++) {
+				Particle p = original.get(i).copy();
+				p.setX(p.getX() + offsetX);
+				p.setY(p.getY() + offsetY);
+				p.getTrail().clear();
+				particles.add(p);
+			}
+		}
+		return particles;
+	}
+
+	/**
+	 * @return a headless engine holding <code>count</code> particles made from <code>scenario</code>, with the
+	 * scenario's time interval and gravitational constant. Collisions are elastic so the count stays fixed while timing.
+	 */
+	public static OrbitalEngine engine(String scenario, int count) throws IOException, ClassNotFoundException {
+		SimulationState state = loadScenario(scenario);
+		OrbitalEngine engine = new OrbitalEngine(state.getTimeInterval(), state.getGravConstant());
+		engine.setElasticCollisions(true);
+		engine.setUpdatingViews(false);
+		for(Particle p : particles(scenario, count)) {
+			engine.addParticle(p);
+		}
+		return engine;
+	}
+
+}
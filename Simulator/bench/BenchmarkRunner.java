@@ -0,0 +1,186 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BenchmarkRunner
+ * Times each benchmark in <code>BenchmarkSuite</code> at a range of particle counts and reports the
+ * time per operation and the bytes allocated per operation, optionally appending the results to a
+ * CSV file so they can be compared from one release to the next.
+ * <p>
+ * Each combination is set up, warmed up for a few iterations so the JIT has compiled it, and then
+ * timed over several iterations of at least <code>--iteration-millis</code> each. Allocation is
+ * counted for the benchmark thread only, so work done on <code>ParallelStepper</code>'s threads
+ * isn't included.
+ * <p>
+ * Usage, from the Simulator directory with bin holding the compiled src and bench directories:
+ * <code>java -cp bin:osp.jar BenchmarkRunner [options]</code>
+ * <pre>
+ *   --counts N,N,...        particle counts (default: 10,100,1000,10000,100000)
+ *   --scenario NAME         demo, three_planet_stable, random or all (default: demo)
+ *   --filter TEXT           only run benchmarks whose names contain TEXT
+ *   --all-counts            also run O(n^2) benchmarks above 10000 particles
+ *   --warmup N              warmup iterations (default: 3)
+ *   --iterations N          timed iterations (default: 5)
+ *   --iteration-millis M    least time per iteration (default: 500)
+ *   --csv FILE              append results to FILE
+ *   --dir DIR               where the scenario .orbital files are (default: .)
+ * </pre>
+ * @author Russell Kaplan
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+
+		int[] counts = {10, 100, 1000, 10000, 100000};
+		String[] scenarios = {"demo"};
+		String filter = "";
+		boolean allCounts = false;
+		int warmup = 3;
+		int iterations = 5;
+		long iterationMillis = 500;
+		File csv = null;
+
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--counts")) {
+				String[] parts = args[++i].split(",");
+				counts = new int[parts.length];
+				for(int k = 0; k < parts.length; k++) {
+					counts[k] = Integer.parseInt(parts[k].trim());
+				}
+			}
+			else if(arg.equals("--scenario")) {
+				String scenario = args[++i];
+				scenarios = scenario.equals("all") ? BenchmarkFixtures.SCENARIOS : new String[] {scenario};
+			}
+			else if(arg.equals("--filter")) filter = args[++i];
+			else if(arg.equals("--all-counts")) allCounts = true;
+			else if(arg.equals("--warmup")) warmup = Integer.parseInt(args[++i]);
+			else if(arg.equals("--iterations")) iterations = Math.max(1, Integer.parseInt(args[++i]));
+			else if(arg.equals("--iteration-millis")) iterationMillis = Long.parseLong(args[++i]);
+			else if(arg.equals("--csv")) csv = new File(args[++i]);
+			else if(arg.equals("--dir")) BenchmarkFixtures.setScenarioDirectory(new File(args[++i]));
+			else {
+				System.err.println("Unknown option " + arg + "; see the BenchmarkRunner documentation for usage.");
+				System.exit(2);
+			}
+		}
+
+		PrintWriter out = null;
+		if(csv != null) {
+			boolean header = !csv.exists() || csv.length() == 0;
+			out = new PrintWriter(new FileWriter(csv, true));
+			if(header) out.println("timestamp,java,benchmark,scenario,count,ns_per_op,ns_per_op_stddev,bytes_per_op,ops");
+		}
+
+		System.out.println(String.format("%-34s %-20s %8s %16s %10s %14s", "benchmark", "scenario", "count", "ns/op", "+-%", "bytes/op"));
+		long timestamp = System.currentTimeMillis();
+		int benchmarkCount = BenchmarkSuite.all().size();
+		for(int b = 0; b < benchmarkCount; b++) {
+			if(!BenchmarkSuite.all().get(b).getName().contains(filter)) continue;
+			for(String scenario : scenarios) {
+				for(int count : counts) {
+					//a fresh instance each time, so nothing a previous setUp built (such as full trails) is kept alive
+					Benchmark benchmark = BenchmarkSuite.all().get(b);
+					if(count > benchmark.getMaxCount() && !allCounts) continue;
+
+					Result result;
+					try {
+						result = measure(benchmark, scenario, count, warmup, iterations, iterationMillis);
+					}
+					catch(Exception e) {
+						System.out.println(String.format("%-34s %-20s %8d failed: %s", benchmark.getName(), scenario, count, e));
+						continue;
+					}
+					System.out.println(String.format("%-34s %-20s %8d %16.1f %10.1f %14s", benchmark.getName(), scenario, count,
+							result.nanosPerOp, 100 * result.nanosStdDev / result.nanosPerOp, (result.bytesPerOp < 0) ? "n/a" : String.valueOf(result.bytesPerOp)));
+					if(out != null) {
+						out.println(timestamp + "," + System.getProperty("java.version") + "," + benchmark.getName() + "," + scenario + "," + count + ","
+								+ result.nanosPerOp + "," + result.nanosStdDev + "," + result.bytesPerOp + "," + result.ops);
+						out.flush();
+					}
+				}
+			}
+		}
+		if(out != null) out.close();
+	}
+
+	private static Result measure(Benchmark benchmark, String scenario, int count, int warmup, int iterations, long iterationMillis) throws Exception {
+		benchmark.setUp(scenario, count);
+		try {
+			for(int i = 0; i < warmup; i++) {
+				iterate(benchmark, iterationMillis);
+			}
+
+			long allocatedBefore = allocatedBytes();
+			List<Double> nanosPerOp = new ArrayList<Double>();
+			long ops = 0;
+			for(int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				long n = iterate(benchmark, iterationMillis);
+				nanosPerOp.add((System.nanoTime() - start) / (double)n);
+				ops += n;
+			}
+			long allocatedAfter = allocatedBytes();
+
+			Result result = new Result();
+			double sum = 0;
+			for(double t : nanosPerOp) {
+				sum += t;
+			}
+			result.nanosPerOp = sum / nanosPerOp.size();
+			double squares = 0;
+			for(double t : nanosPerOp) {
+				squares += (t - result.nanosPerOp) * (t - result.nanosPerOp);
+			}
+			result.nanosStdDev = Math.sqrt(squares / nanosPerOp.size());
+			result.bytesPerOp = (allocatedBefore < 0) ? -1 : (allocatedAfter - allocatedBefore) / ops;
+			result.ops = ops;
+			return result;
+		}
+		finally {
+			benchmark.tearDown();
+		}
+	}
+
+	/**
+	 * Runs the operation until at least <code>millis</code> have passed.
+	 * @return how many times it ran
+	 */
+	private static long iterate(Benchmark benchmark, long millis) throws Exception {
+		long end = System.nanoTime() + millis * 1000000;
+		long ops = 0;
+		do {
+			benchmark.run();
+			ops++;
+		} while(System.nanoTime() < end);
+		return ops;
+	}
+
+	/**
+	 * @return the bytes allocated so far by this thread, or -1 if the JVM can't say
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)threads;
+		if(!sun.isThreadAllocatedMemorySupported()) return -1;
+		return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static class Result {
+		double nanosPerOp;
+		double nanosStdDev;
+		long bytesPerOp;
+		long ops;
+	}
+
+}
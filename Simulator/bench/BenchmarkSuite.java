@@ -0,0 +1,163 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BenchmarkSuite
+ * The benchmarks run by <code>BenchmarkRunner</code>: force calculation, integration, a whole
+ * headless step, collision detection, copying state (for undo and autosave), and saving and
+ * loading files.
+ * @author Russell Kaplan
+ *
+ */
+public class BenchmarkSuite {
+
+	final private static int QUADRATIC_MAX_COUNT = 10000; //O(n^2) operations take far too long beyond this
+
+	public static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		benchmarks.add(new Benchmark("force.directSum", QUADRATIC_MAX_COUNT) {
+			private ParticleStore store;
+			private ForceSolver solver = new DirectSumSolver();
+			private double g;
+			public void setUp(String scenario, int count) throws Exception {
+				OrbitalEngine engine = BenchmarkFixtures.engine(scenario, count);
+				store = engine.getStore();
+				g = engine.getGravConstant();
+			}
+			public void run() {
+				solver.computeAccelerations(store, g);
+			}
+		});
+
+		//the range kernels used by ParallelStepper, on one thread; compare the lane kernel against the scalar one:
+		for(final boolean lanes : new boolean[] {true, false}) {
+			benchmarks.add(new Benchmark("force.directSum.ranges." + (lanes ? "lanes" : "scalar"), QUADRATIC_MAX_COUNT) {
+				private ParticleStore store;
+				private ForceSolver solver = new DirectSumSolver();
+				private double g;
+				private boolean chosen;
+				public void setUp(String scenario, int count) throws Exception {
+					OrbitalEngine engine = BenchmarkFixtures.engine(scenario, count);
+					store = engine.getStore();
+					g = engine.getGravConstant();
+					if(!DirectSumSolver.validate(lanes)) throw new IllegalStateException("the " + (lanes ? "lane" : "scalar") + " kernel disagrees with the reference formulas");
+					chosen = DirectSumSolver.isUsingLaneKernel();
+					DirectSumSolver.setLaneKernel(lanes);
+				}
+				public void run() {
+					solver.computeAccelerations(store, g, 0, store.size);
+				}
+				public void tearDown() {
+					DirectSumSolver.setLaneKernel(chosen);
+				}
+			});
+		}
+
+		benchmarks.add(new Benchmark("force.barnesHut", Integer.MAX_VALUE) {
+			private ParticleStore store;
+			private ForceSolver solver = new BarnesHutSolver();
+			private double g;
+			public void setUp(String scenario, int count) throws Exception {
+				OrbitalEngine engine = BenchmarkFixtures.engine(scenario, count);
+				store = engine.getStore();
+				g = engine.getGravConstant();
+			}
+			public void run() {
+				solver.computeAccelerations(store, g);
+			}
+		});
+
+		for(final String integrator : new String[] {"Euler", "Leapfrog", "RK4"}) {
+			benchmarks.add(new Benchmark("step." + integrator.toLowerCase() + ".barnesHut", Integer.MAX_VALUE) {
+				private OrbitalEngine engine;
+				public void setUp(String scenario, int count) throws Exception {
+					engine = BenchmarkFixtures.engine(scenario, count);
+					engine.setIntegrator(Integrator.forName(integrator));
+					engine.setSolver(new BarnesHutSolver());
+				}
+				public void run() {
+					engine.step();
+				}
+			});
+		}
+
+		benchmarks.add(new Benchmark("step.euler.directSum", QUADRATIC_MAX_COUNT) {
+			private OrbitalEngine engine;
+			public void setUp(String scenario, int count) throws Exception {
+				engine = BenchmarkFixtures.engine(scenario, count);
+			}
+			public void run() {
+				engine.step();
+			}
+		});
+
+		benchmarks.add(new Benchmark("step.euler.directSum.parallel", QUADRATIC_MAX_COUNT) {
+			private OrbitalEngine engine;
+			public void setUp(String scenario, int count) throws Exception {
+				engine = BenchmarkFixtures.engine(scenario, count);
+				engine.getKernel().setParallelStepper(new ParallelStepper(Runtime.getRuntime().availableProcessors()));
+			}
+			public void run() {
+				engine.step();
+			}
+			public void tearDown() {
+				engine.getKernel().getParallelStepper().shutdown();
+			}
+		});
+
+		benchmarks.add(new Benchmark("collisions", Integer.MAX_VALUE) {
+			private ParticleStore store;
+			private CollisionDetector detector = new CollisionDetector(OrbitalEngine.DEFAULT_COLLISION_TOLERANCE);
+			public void setUp(String scenario, int count) throws Exception {
+				store = BenchmarkFixtures.engine(scenario, count).getStore();
+			}
+			public void run() {
+				detector.findCollisions(store);
+			}
+		});
+
+		benchmarks.add(new Benchmark("state.copy", Integer.MAX_VALUE) {
+			private OrbitalEngine engine;
+			public void setUp(String scenario, int count) throws Exception {
+				engine = BenchmarkFixtures.engine(scenario, count);
+			}
+			public void run() {
+				engine.currentState();
+			}
+		});
+
+		benchmarks.add(new Benchmark("state.save", Integer.MAX_VALUE) {
+			private SimulationState state;
+			private File file;
+			public void setUp(String scenario, int count) throws Exception {
+				state = BenchmarkFixtures.engine(scenario, count).currentState();
+				file = File.createTempFile("benchmark", ".orbital");
+			}
+			public void run() throws Exception {
+				state.save(file);
+			}
+			public void tearDown() {
+				file.delete();
+			}
+		});
+
+		benchmarks.add(new Benchmark("state.load", Integer.MAX_VALUE) {
+			private File file;
+			public void setUp(String scenario, int count) throws Exception {
+				file = File.createTempFile("benchmark", ".orbital");
+				BenchmarkFixtures.engine(scenario, count).currentState().save(file);
+			}
+			public void run() throws Exception {
+				SimulationState.load(file);
+			}
+			public void tearDown() {
+				file.delete();
+			}
+		});
+
+		return benchmarks;
+	}
+
+}
@@ -0,0 +1,249 @@
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Autosaver
+ * Saves checkpoints of a running simulation every <code>interval</code> steps without holding up the
+ * steps themselves, and keeps only the newest <code>keep</code> of them.
+ * <p>
+ * At a step boundary the engine's state is copied (which is cheap; see <code>Particle.copy</code>),
+ * and a single background thread writes the copy to a temporary file, forces it to disk and renames
+ * it over its final name, so a checkpoint file is either complete or absent. If the previous
+ * checkpoint is still being written when the next is due, the next is skipped rather than queued,
+ * before the state is copied.
+ * The same thread can write manual saves with <code>saveInBackground</code>.
+ * @author Russell Kaplan
+ *
+ */
+public class Autosaver {
+
+	final public static String PREFIX = "autosave-";
+	final public static String SUFFIX = ".orbital";
+	final private static String TEMP_SUFFIX = ".tmp";
+
+	private File directory;
+	private int interval;
+	private int keep;
+	private long sequence; //number of the next checkpoint
+
+	private ExecutorService writer;
+	private AtomicBoolean writing = new AtomicBoolean();
+	private volatile IOException lastFailure;
+
+	/**
+	 * @param interval steps between checkpoints, or 0 to only save when asked
+	 * @param keep how many checkpoints to keep
+	 */
+	public Autosaver(File directory, int interval, int keep) {
+		this.directory = directory;
+		this.interval = Math.max(0, interval);
+		this.keep = Math.max(1, keep);
+		File[] existing = listCheckpoints(directory);
+		this.sequence = (existing.length == 0) ? 0 : sequenceOf(existing[0]) + 1;
+
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Autosave");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts a checkpoint if the engine's step count is a multiple of the interval.
+	 * Called by the engine at the end of each step, on the stepping thread.
+	 */
+	public void stepped(OrbitalEngine engine) {
+		if(interval == 0 || engine.getStepCount() % interval != 0) return;
+		if(!writing.compareAndSet(false, true)) return; //the previous checkpoint is still being written, so don't pay for a copy
+		SimulationState state;
+		try {
+			state = engine.currentState();
+		}
+		catch(RuntimeException e) {
+			writing.set(false);
+			throw e;
+		}
+		write(state);
+	}
+
+	/**
+	 * Writes <code>state</code> as the newest checkpoint in the background, unless a checkpoint is already being written.
+	 * @return false if it was skipped
+	 */
+	public boolean checkpoint(final SimulationState state) {
+		if(!writing.compareAndSet(false, true)) return false;
+		write(state);
+		return true;
+	}
+
+	/**
+	 * Writes <code>state</code> as the newest checkpoint on the background thread. The caller must already have set <code>writing</code>.
+	 */
+	private void write(final SimulationState state) {
+		final File file = new File(directory, PREFIX + String.format("%012d", sequence++) + SUFFIX);
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					writeAtomically(state, file);
+					deleteOldCheckpoints();
+					lastFailure = null;
+				}
+				catch(IOException e) {
+					lastFailure = e;
+					System.err.println("Autosave to " + file + " failed: " + e.getMessage());
+				}
+				finally {
+					writing.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes <code>state</code> to <code>file</code> on the background thread, after any checkpoint in progress.
+	 * @param done told the outcome once the file is on disk, on the background thread; may be null
+	 */
+	public void saveInBackground(final SimulationState state, final File file, final SaveListener done) {
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					writeAtomically(state, file);
+					if(done != null) done.saved(file, null);
+				}
+				catch(IOException e) {
+					if(done != null) done.saved(file, e);
+				}
+			}
+		});
+	}
+
+	private static void writeAtomically(SimulationState state, File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("could not create " + dir);
+		File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+		try {
+			OrbitalFile.write(state, temp, true);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			if(temp.exists()) temp.delete(); //only if something went wrong
+		}
+	}
+
+	private void deleteOldCheckpoints() {
+		File[] checkpoints = listCheckpoints(directory);
+		for(int i = keep; i < checkpoints.length; i++) {
+			if(!checkpoints[i].delete()) System.err.println("Could not delete old autosave " + checkpoints[i]);
+		}
+	}
+
+	/**
+	 * @return the checkpoints in <code>directory</code>, newest first
+	 */
+	public static File[] listCheckpoints(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX) && sequenceOf(f) >= 0;
+			}
+		});
+		if(files == null) return new File[0];
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(sequenceOf(b), sequenceOf(a));
+			}
+		});
+		return files;
+	}
+
+	private static long sequenceOf(File checkpoint) {
+		String name = checkpoint.getName();
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Loads the newest checkpoint in <code>directory</code> that can be read, skipping any that are damaged.
+	 * @return null if there are none
+	 */
+	public static SimulationState loadNewest(File directory) {
+		for(File checkpoint : listCheckpoints(directory)) {
+			try {
+				return SimulationState.load(checkpoint);
+			}
+			catch(IOException e) {
+				System.err.println("Skipping unreadable autosave " + checkpoint + ": " + e.getMessage());
+			}
+			catch(ClassNotFoundException e) {
+				System.err.println("Skipping unreadable autosave " + checkpoint + ": " + e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Waits for any checkpoint or save in progress, then stops the background thread.
+	 */
+	public void shutdown() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public void setInterval(int interval) {
+		this.interval = Math.max(0, interval);
+	}
+
+	public int getKeep() {
+		return keep;
+	}
+
+	public void setKeep(int keep) {
+		this.keep = Math.max(1, keep);
+	}
+
+	/**
+	 * @return why the most recent checkpoint failed, or null if it succeeded
+	 */
+	public IOException getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * Told when a save started with <code>saveInBackground</code> finishes.
+	 */
+	public interface SaveListener {
+		/**
+		 * @param failure why the save failed, or null if it succeeded
+		 */
+		public void saved(File file, IOException failure);
+	}
+
+}
@@ -0,0 +1,290 @@
+import java.util.Arrays;
+
+/**
+ * BarnesHutSolver
+ * Approximate O(n log n) solver that groups distant particles together using a quadtree.
+ * A node is treated as a single point mass at its center of mass when its width divided
+ * by its distance from the particle is less than the opening angle theta. Smaller values
+ * of theta are more accurate; theta = 0 is equivalent to the direct sum.
+ * <p>
+ * The tree is rebuilt from scratch on every call. Its nodes are stored in parallel arrays
+ * that are reused between steps so that building it does not allocate once the arrays have
+ * grown large enough, and each thread walks it with a stack of its own that is kept between calls.
+ * @author Russell Kaplan
+ *
+ */
+public class BarnesHutSolver implements ForceSolver {
+
+	final public static double DEFAULT_THETA = 0.5;
+	final private static int MAX_DEPTH = 64; //particles closer together than this many subdivisions share a leaf
+	final private static int EMPTY = -1;
+
+	//each thread's stack for walking the tree; each level of the walk leaves at most three siblings on it:
+	final private static ThreadLocal<int[]> stacks = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[3 * (MAX_DEPTH + 2) + 4];
+		}
+	};
+
+	private double theta;
+
+	//node data, indexed by node number (node 0 is the root):
+	private double[] centerX;
+	private double[] centerY;
+	private double[] halfWidth;
+	private double[] mass;
+	private double[] massX; //sum of mass * x, divided by mass once the tree is finished to give the center of mass
+	private double[] massY;
+	private int[] firstChild; //index of the first of four consecutive children, or EMPTY for a leaf
+	private int[] firstBody; //head of the linked list of particles in a leaf, or EMPTY
+	private int nodeCount;
+
+	//particle data, indexed by position in the store:
+	private double[] xs;
+	private double[] ys;
+	private double[] ms;
+	private int[] nextBody; //next particle in the same leaf, or EMPTY
+
+	public BarnesHutSolver() {
+		this(DEFAULT_THETA);
+	}
+
+	public BarnesHutSolver(double theta) {
+		setTheta(theta);
+		allocateNodes(64);
+		nextBody = new int[16];
+	}
+
+	@Override
+	public void computeAccelerations(ParticleStore store, double gravConstant) {
+		prepare(store, gravConstant);
+		computeAccelerations(store, gravConstant, 0, store.size);
+	}
+
+	@Override
+	public void prepare(ParticleStore store, double gravConstant) {
+		buildTree(store);
+	}
+
+	@Override
+	public void computeAccelerations(ParticleStore store, double gravConstant, int from, int to) {
+		if(store.size == 0) return;
+
+		int[] stack = stacks.get();
+		for(int i = from; i < to; i++) {
+			accumulate(i, gravConstant, store.ax, store.ay, stack);
+		}
+	}
+
+	/**
+	 * Compares the accelerations computed by this solver against the exact direct sum.
+	 * The accelerations in <code>store</code> are left as they were.
+	 * @param store the particles in the simulation
+	 * @param gravConstant the gravitational constant
+	 * @return {RMS relative error, maximum relative error} over all particles
+	 */
+	public double[] measureError(ParticleStore store, double gravConstant) {
+		int n = store.size;
+		double[] savedX = Arrays.copyOf(store.ax, n);
+		double[] savedY = Arrays.copyOf(store.ay, n);
+
+		computeAccelerations(store, gravConstant);
+		double[] approxX = Arrays.copyOf(store.ax, n);
+		double[] approxY = Arrays.copyOf(store.ay, n);
+
+		new DirectSumSolver().computeAccelerations(store, gravConstant);
+		double[] exactX = store.ax;
+		double[] exactY = store.ay;
+
+		double sumSquares = 0;
+		double max = 0;
+		int counted = 0;
+		for(int i = 0; i < n; i++) {
+			double exact = Math.hypot(exactX[i], exactY[i]);
+			if(exact == 0 || Double.isNaN(exact)) continue; //relative error is undefined
+			double error = Math.hypot(approxX[i] - exactX[i], approxY[i] - exactY[i]) / exact;
+			sumSquares += error * error;
+			max = Math.max(max, error);
+			counted++;
+		}
+
+		System.arraycopy(savedX, 0, store.ax, 0, n);
+		System.arraycopy(savedY, 0, store.ay, 0, n);
+
+		return new double[] {counted == 0 ? 0 : Math.sqrt(sumSquares / counted), max};
+	}
+
+	private void buildTree(ParticleStore store) {
+		int n = store.size;
+		xs = store.x;
+		ys = store.y;
+		ms = store.mass;
+		if(nextBody.length < n) nextBody = new int[store.capacity()];
+
+		//find the bounding square:
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for(int i = 0; i < n; i++) {
+			minX = Math.min(minX, xs[i]);
+			maxX = Math.max(maxX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+
+		nodeCount = 0;
+		int root = newNode((minX + maxX) / 2, (minY + maxY) / 2, Math.max(Math.max(maxX - minX, maxY - minY) / 2, Double.MIN_NORMAL));
+
+		for(int i = 0; i < n; i++) {
+			insert(root, i);
+		}
+
+		for(int node = 0; node < nodeCount; node++) {
+			if(mass[node] != 0) {
+				massX[node] /= mass[node];
+				massY[node] /= mass[node];
+			}
+		}
+	}
+
+	private void insert(int node, int i) {
+		double x = xs[i];
+		double y = ys[i];
+		double m = ms[i];
+
+		for(int depth = 0; ; depth++) {
+			mass[node] += m;
+			massX[node] += m * x;
+			massY[node] += m * y;
+
+			if(firstChild[node] == EMPTY) {
+				if(firstBody[node] == EMPTY || depth >= MAX_DEPTH) { //empty leaf, or too deep to split any further
+					nextBody[i] = firstBody[node];
+					firstBody[node] = i;
+					return;
+				}
+
+				//split the leaf and push its particle down into the matching child:
+				int existing = firstBody[node];
+				firstBody[node] = EMPTY;
+				subdivide(node);
+				int child = childContaining(node, xs[existing], ys[existing]);
+				mass[child] = ms[existing];
+				massX[child] = ms[existing] * xs[existing];
+				massY[child] = ms[existing] * ys[existing];
+				nextBody[existing] = EMPTY;
+				firstBody[child] = existing;
+			}
+
+			node = childContaining(node, x, y);
+		}
+	}
+
+	private void subdivide(int node) {
+		double quarter = halfWidth[node] / 2;
+		double cx = centerX[node];
+		double cy = centerY[node];
+		int first = newNode(cx - quarter, cy - quarter, quarter);
+		newNode(cx + quarter, cy - quarter, quarter);
+		newNode(cx - quarter, cy + quarter, quarter);
+		newNode(cx + quarter, cy + quarter, quarter);
+		firstChild[node] = first;
+	}
+
+	private int childContaining(int node, double x, double y) {
+		int quadrant = (x < centerX[node] ? 0 : 1) + (y < centerY[node] ? 0 : 2);
+		return firstChild[node] + quadrant;
+	}
+
+	private int newNode(double cx, double cy, double half) {
+		if(nodeCount == centerX.length) allocateNodes(centerX.length * 2);
+		int node = nodeCount++;
+		centerX[node] = cx;
+		centerY[node] = cy;
+		halfWidth[node] = half;
+		mass[node] = massX[node] = massY[node] = 0;
+		firstChild[node] = EMPTY;
+		firstBody[node] = EMPTY;
+		return node;
+	}
+
+	private void accumulate(int i, double gravConstant, double[] xAccels, double[] yAccels, int[] stack) {
+		double x = xs[i];
+		double y = ys[i];
+		double thetaSquared = theta * theta;
+		double ax = 0;
+		double ay = 0;
+
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int node = stack[--top];
+			if(mass[node] == 0) continue;
+
+			if(firstChild[node] == EMPTY) { //leaf: sum its particles exactly
+				for(int j = firstBody[node]; j != EMPTY; j = nextBody[j]) {
+					if(j == i) continue;
+					double dx = xs[j] - x;
+					double dy = ys[j] - y;
+					double r = Math.sqrt(dx*dx + dy*dy);
+					double scale = gravConstant * ms[j] / (r * r * r);
+					ax += scale * dx;
+					ay += scale * dy;
+				}
+				continue;
+			}
+
+			double dx = massX[node] - x;
+			double dy = massY[node] - y;
+			double distSquared = dx*dx + dy*dy;
+			double width = 2 * halfWidth[node];
+			boolean containsParticle = Math.abs(x - centerX[node]) <= halfWidth[node] && Math.abs(y - centerY[node]) <= halfWidth[node];
+
+			if(!containsParticle && width * width < thetaSquared * distSquared) { //far enough away to treat as a single mass
+				double r = Math.sqrt(distSquared);
+				double scale = gravConstant * mass[node] / (r * r * r);
+				ax += scale * dx;
+				ay += scale * dy;
+			}
+			else {
+				for(int c = 0; c < 4; c++) {
+					stack[top++] = firstChild[node] + c;
+				}
+			}
+		}
+
+		xAccels[i] = ax;
+		yAccels[i] = ay;
+	}
+
+	private void allocateNodes(int capacity) {
+		int old = centerX == null ? 0 : centerX.length;
+		centerX = grow(centerX, capacity);
+		centerY = grow(centerY, capacity);
+		halfWidth = grow(halfWidth, capacity);
+		mass = grow(mass, capacity);
+		massX = grow(massX, capacity);
+		massY = grow(massY, capacity);
+		firstChild = old == 0 ? new int[capacity] : Arrays.copyOf(firstChild, capacity);
+		firstBody = old == 0 ? new int[capacity] : Arrays.copyOf(firstBody, capacity);
+	}
+
+	private static double[] grow(double[] array, int capacity) {
+		return array == null ? new double[capacity] : Arrays.copyOf(array, capacity);
+	}
+
+	@Override
+	public String getName() {
+		return "Barnes-Hut (theta = " + theta + ")";
+	}
+
+	public double getTheta() {
+		return theta;
+	}
+
+	public void setTheta(double theta) {
+		if(theta < 0) throw new IllegalArgumentException("theta must not be negative");
+		this.theta = theta;
+	}
+
+}
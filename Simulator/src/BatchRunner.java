@@ -0,0 +1,201 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * BatchRunner
+ * Runs a saved simulation from the command line with no display, as fast as the machine allows,
+ * and writes the final state (and optionally periodic snapshots) back out as .orbital files.
+ * <p>
+ * Usage: <code>java BatchRunner input.orbital (--steps N | --time T) [options]</code>
+ * <pre>
+ *   --steps N               number of steps to take
+ *   --time T                amount of simulated time to advance (rounded up to whole steps)
+ *   --out FILE              where to write the final state (default: input-final.orbital)
+ *   --snapshot-every N      also save the state every N steps
+ *   --snapshot-prefix P     snapshots are written to P-&lt;step&gt;.orbital (default: the input name)
+ *   --dt DT                 override the saved time interval
+ *   --integrator NAME       one of Integrator.NAMES (default: Euler)
+ *   --barnes-hut THETA      use Barnes-Hut gravity with the given opening angle
+ *   --threads N             split each step across N threads (default: 1); the results are the same for any N
+ *   --elastic / --inelastic override the saved collision type
+ *   --no-trails             leave trails out of the files written, making them much smaller
+ *   --record FILE           record positions and velocities to a trajectory file as the run goes
+ *   --record-every N        record every N steps (default: 1)
+ *   --profile               print how long each phase of a step took, and energy and momentum drift, at the end
+ * </pre>
+ * @author Russell Kaplan
+ *
+ */
+public class BatchRunner {
+
+	final private static int PROGRESS_INTERVAL_MILLIS = 10000;
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		if(args.length == 0) {
+			usage("no input file given");
+			return;
+		}
+
+		File input = new File(args[0]);
+		long steps = -1;
+		double time = -1;
+		File output = null;
+		long snapshotEvery = 0;
+		String snapshotPrefix = null;
+		double timeInterval = -1;
+		String integrator = "Euler";
+		double theta = -1;
+		int threads = 1;
+		Boolean elastic = null;
+		boolean trails = true;
+		File recording = null;
+		int recordEvery = 1;
+		boolean profile = false;
+
+		try {
+			for(int i = 1; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--steps")) steps = Long.parseLong(args[++i]);
+				else if(arg.equals("--time")) time = Double.parseDouble(args[++i]);
+				else if(arg.equals("--out")) output = new File(args[++i]);
+				else if(arg.equals("--snapshot-every")) snapshotEvery = Long.parseLong(args[++i]);
+				else if(arg.equals("--snapshot-prefix")) snapshotPrefix = args[++i];
+				else if(arg.equals("--dt")) timeInterval = Double.parseDouble(args[++i]);
+				else if(arg.equals("--integrator")) integrator = args[++i];
+				else if(arg.equals("--barnes-hut")) theta = Double.parseDouble(args[++i]);
+				else if(arg.equals("--threads")) threads = Integer.parseInt(args[++i]);
+				else if(arg.equals("--elastic")) elastic = true;
+				else if(arg.equals("--inelastic")) elastic = false;
+				else if(arg.equals("--no-trails")) trails = false;
+				else if(arg.equals("--record")) recording = new File(args[++i]);
+				else if(arg.equals("--record-every")) recordEvery = Integer.parseInt(args[++i]);
+				else if(arg.equals("--profile")) profile = true;
+				else {
+					usage("unknown option " + arg);
+					return;
+				}
+			}
+			Integrator.forName(integrator); //fail now rather than after loading the input
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			usage("missing value for " + args[args.length - 1]);
+			return;
+		}
+		catch(NumberFormatException e) {
+			usage("invalid number: " + e.getMessage());
+			return;
+		}
+		catch(IllegalArgumentException e) { //an unknown integrator
+			usage(e.getMessage());
+			return;
+		}
+
+		if(threads < 1) {
+			usage("--threads must be at least 1");
+			return;
+		}
+		if((steps < 0) == (time < 0)) {
+			usage("exactly one of --steps and --time is required");
+			return;
+		}
+
+		String baseName = input.getName().endsWith(".orbital") ? input.getName().substring(0, input.getName().length() - ".orbital".length()) : input.getName();
+		if(output == null) output = new File(input.getAbsoluteFile().getParentFile(), baseName + "-final.orbital");
+		if(snapshotPrefix == null) snapshotPrefix = new File(input.getAbsoluteFile().getParentFile(), baseName).getPath();
+
+		OrbitalEngine engine;
+		try {
+			engine = new OrbitalEngine(SimulationState.load(input));
+		}
+		catch(IOException e) {
+			System.err.println("Could not read " + input + ": " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		catch(ClassNotFoundException e) {
+			System.err.println(input + " is not a valid .orbital file: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		if(timeInterval > 0) engine.setTimeInterval(timeInterval);
+		if(elastic != null) engine.setElasticCollisions(elastic);
+		engine.setIntegrator(Integrator.forName(integrator));
+		if(theta >= 0) engine.setSolver(new BarnesHutSolver(theta));
+		engine.getKernel().setParallelStepper(new ParallelStepper(threads)); //even for one thread, so every thread count sums forces in the same order
+
+		if(profile) engine.setProfiler(new StepProfiler());
+		if(steps < 0) steps = (long)Math.ceil(time / engine.getTimeInterval());
+		if(recording != null) {
+			try {
+				engine.setRecorder(new TrajectoryRecorder(recording, recordEvery));
+			}
+			catch(IOException e) {
+				System.err.println("Could not record to " + recording + ": " + e.getMessage());
+				System.exit(1);
+				return;
+			}
+		}
+
+		System.out.println("Running " + input + ": " + engine.getParticles().size() + " particles, " + steps + " steps of " + engine.getTimeInterval()
+				+ " (" + engine.getIntegrator().getName() + ", " + engine.getSolver().getName() + ", " + threads + " thread" + (threads == 1 ? "" : "s") + ")");
+
+		long start = System.currentTimeMillis();
+		long lastProgress = start;
+		for(long step = 1; step <= steps; step++) {
+			engine.step();
+
+			if(snapshotEvery > 0 && step % snapshotEvery == 0 && step != steps) {
+				File snapshot = new File(snapshotPrefix + "-" + step + ".orbital");
+				try {
+					engine.currentState().save(snapshot, trails);
+				}
+				catch(IOException e) {
+					System.err.println("Could not write snapshot " + snapshot + ": " + e.getMessage());
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if(now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+				System.out.println("  step " + step + " of " + steps + ", t = " + engine.getTimeElapsed() + ", " + engine.getParticles().size() + " particles");
+				lastProgress = now;
+			}
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+		boolean saved = true;
+		try {
+			engine.currentState().save(output, trails);
+		}
+		catch(IOException e) {
+			System.err.println("Could not write " + output + ": " + e.getMessage());
+			saved = false;
+		}
+		if(engine.getRecorder() != null) {
+			try {
+				engine.getRecorder().close();
+				System.out.println("Recorded " + engine.getRecorder().getFrames() + " frames to " + recording);
+			}
+			catch(IOException e) {
+				System.err.println("Recording to " + recording + " failed: " + e.getMessage());
+			}
+		}
+		if(engine.getKernel().getParallelStepper() != null) engine.getKernel().getParallelStepper().shutdown();
+
+		System.out.println("Finished at t = " + engine.getTimeElapsed() + " with " + engine.getParticles().size() + " particles in " + (elapsed / 1000.0) + " s ("
+				+ Math.round(steps * 1000.0 / elapsed) + " steps/s)." + (saved ? " Wrote " + output : ""));
+		if(profile) System.out.println(engine.getProfiler().summary());
+		if(!saved) System.exit(1);
+	}
+
+	private static void usage(String problem) {
+		System.err.println("Error: " + problem);
+		System.err.println("Usage: java BatchRunner input.orbital (--steps N | --time T) [--out FILE] [--snapshot-every N] [--snapshot-prefix P]");
+		System.err.println("                        [--dt DT] [--integrator NAME] [--barnes-hut THETA] [--threads N] [--elastic | --inelastic] [--no-trails]");
+		System.err.println("                        [--record FILE] [--record-every N] [--profile]");
+		System.exit(2);
+	}
+
+}
@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/**
+ * BlockTimestepIntegrator
+ * Kick-drift-kick leapfrog where each particle takes its own power-of-two fraction of the
+ * global time step. A particle's step is chosen from <code>accuracy * |velocity| / |acceleration|</code>,
+ * roughly its orbital period divided by 2&pi;/accuracy, so bodies in tight orbits or close encounters
+ * are subdivided up to 2^<code>maxLevel</code> times while distant bodies take the full step.
+ * <p>
+ * Particles on level k take steps of <code>timeInterval / 2^k</code>, and steps on every level line up
+ * with the steps of the coarser levels. Between force evaluations all particles drift together;
+ * at each substep boundary only the particles whose steps end there (the active block) have their
+ * accelerations recomputed and are kicked. A particle may move to a coarser level only at a
+ * boundary that is shared with that level.
+ * @author Russell Kaplan
+ *
+ */
+public class BlockTimestepIntegrator extends Integrator {
+
+	final public static double DEFAULT_ACCURACY = 0.05;
+	final public static int DEFAULT_MAX_LEVEL = 10;
+
+	private double accuracy;
+	private int maxLevel;
+
+	private int[] levels = new int[0];
+	private int[] active = new int[0];
+	private int[] levelCounts = new int[31]; //number of particles on each level
+	private long particleForceEvaluations; //number of single-particle acceleration computations so far
+
+	public BlockTimestepIntegrator() {
+		this(DEFAULT_ACCURACY, DEFAULT_MAX_LEVEL);
+	}
+
+	public BlockTimestepIntegrator(double accuracy, int maxLevel) {
+		setAccuracy(accuracy);
+		setMaxLevel(maxLevel);
+	}
+
+	@Override
+	public void step(ParticleStore store, PhysicsKernel kernel, double timeInterval) {
+		int n = store.size;
+		if(n == 0) return;
+		if(levels.length < n) {
+			levels = new int[store.capacity()];
+			active = new int[store.capacity()];
+		}
+
+		if(!store.accelerationsValid) {
+			kernel.computeAccelerations(store);
+			particleForceEvaluations += n;
+		}
+
+		//assign every particle a level; the finest one in use sets the number of substeps:
+		int finest = 0;
+		for(int i = 0; i < n; i++) {
+			levels[i] = chooseLevel(store, i, timeInterval, maxLevel);
+			finest = Math.max(finest, levels[i]);
+		}
+		int substeps = 1 << finest;
+		double h = timeInterval / substeps;
+
+		Arrays.fill(levelCounts, 0, finest + 1, 0);
+		for(int i = 0; i < n; i++) {
+			levelCounts[levels[i]]++;
+			halfKick(store, i, h * stride(levels[i], finest)); //opening half kick
+		}
+
+		int time = 0; //in substeps
+		while(time < substeps) {
+			//jump to the next boundary of the finest level that has any particles on it:
+			int level = finest;
+			while(levelCounts[level] == 0) level--;
+			int next = time + stride(level, finest) - time % stride(level, finest);
+
+			kernel.drift(store, (next - time) * h);
+			time = next;
+
+			//particles whose steps end now get new accelerations and their closing half kick:
+			int count = 0;
+			for(int i = 0; i < n; i++) {
+				if(time % stride(levels[i], finest) == 0) active[count++] = i;
+			}
+			kernel.computeAccelerations(store, active, count);
+			particleForceEvaluations += count;
+
+			for(int k = 0; k < count; k++) {
+				int i = active[k];
+				halfKick(store, i, h * stride(levels[i], finest));
+
+				if(time < substeps) { //start the particle's next step, possibly on a new level
+					int newLevel = chooseLevel(store, i, timeInterval, finest);
+					while(time % stride(newLevel, finest) != 0) newLevel++; //can only coarsen where the levels line up
+					levelCounts[levels[i]]--;
+					levelCounts[newLevel]++;
+					levels[i] = newLevel;
+					halfKick(store, i, h * stride(newLevel, finest));
+				}
+			}
+		}
+
+		store.accelerationsValid = true; //every particle was active at the final boundary
+	}
+
+	/**
+	 * @return the level whose step best satisfies the accuracy criterion for particle i, at most <code>finestAllowed</code>
+	 */
+	private int chooseLevel(ParticleStore store, int i, double timeInterval, int finestAllowed) {
+		double speed = Math.hypot(store.vx[i], store.vy[i]);
+		double acceleration = Math.hypot(store.ax[i], store.ay[i]);
+		if(acceleration == 0) return 0;
+		if(speed == 0) return finestAllowed; //hasn't started moving yet, so there's no timescale to go on
+
+		double ideal = accuracy * speed / acceleration;
+		if(ideal >= timeInterval) return 0;
+		int level = (int)Math.ceil(Math.log(timeInterval / ideal) / Math.log(2));
+		return Math.min(level, finestAllowed);
+	}
+
+	private static int stride(int level, int finest) {
+		return 1 << (finest - level);
+	}
+
+	private static void halfKick(ParticleStore store, int i, double dt) {
+		store.vx[i] += store.ax[i] * dt / 2;
+		store.vy[i] += store.ay[i] * dt / 2;
+	}
+
+	public long getParticleForceEvaluations() {
+		return particleForceEvaluations;
+	}
+
+	public double getAccuracy() {
+		return accuracy;
+	}
+
+	public void setAccuracy(double accuracy) {
+		if(accuracy <= 0) throw new IllegalArgumentException("accuracy must be positive");
+		this.accuracy = accuracy;
+	}
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	public void setMaxLevel(int maxLevel) {
+		if(maxLevel < 0 || maxLevel > 30) throw new IllegalArgumentException("maxLevel must be between 0 and 30");
+		this.maxLevel = maxLevel;
+	}
+
+	@Override
+	public String getName() {
+		return "Block Timestep";
+	}
+
+}
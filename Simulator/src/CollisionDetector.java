@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * CollisionDetector
+ * Finds every pair of overlapping particles in a <code>ParticleStore</code> using a uniform grid.
+ * <p>
+ * The grid is rebuilt on every call. Its cells are at least as wide as the largest particle,
+ * so any two particles that touch lie in the same or neighboring cells. Cells are hashed into a
+ * table and particles are counting-sorted by bucket, so building the grid takes O(n) time and
+ * does not allocate once the arrays have grown large enough. Overlap is tested in world units
+ * on the particles' physical radii, so the result does not depend on the zoom level.
+ * @author Russell Kaplan
+ *
+ */
+public class CollisionDetector {
+
+	private double tolerance; //how far one particle must overlap another, in world units, to count as a collision
+
+	private long[] cellX = new long[0]; //grid coordinates of each particle
+	private long[] cellY = new long[0];
+	private int[] bucketStart = new int[1]; //bucket b holds sorted[bucketStart[b]] to sorted[bucketStart[b + 1] - 1]
+	private int[] sorted = new int[0]; //particle indices ordered by bucket
+
+	private long[] pairs = new long[16]; //each colliding pair packed as (i << 32) | j, with i < j
+	private int pairCount;
+
+	public CollisionDetector(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Finds all overlapping pairs of particles in <code>store</code>.
+	 * @return the number of pairs found, which can then be read with <code>getFirst</code> and <code>getSecond</code>
+	 */
+	public int findCollisions(ParticleStore store) {
+		int n = store.size;
+		pairCount = 0;
+		if(n < 2) return 0;
+
+		double maxRadius = 0;
+		for(int i = 0; i < n; i++) {
+			maxRadius = Math.max(maxRadius, store.radius[i]);
+		}
+		if(2 * maxRadius <= tolerance) return 0; //nothing can overlap by enough
+		double cellSize = 2 * maxRadius;
+
+		buildGrid(store, cellSize);
+
+		double[] x = store.x, y = store.y, radius = store.radius;
+		int mask = bucketStart.length - 2;
+		for(int i = 0; i < n; i++) {
+			for(long cx = cellX[i] - 1; cx <= cellX[i] + 1; cx++) {
+				for(long cy = cellY[i] - 1; cy <= cellY[i] + 1; cy++) {
+					int bucket = hash(cx, cy) & mask;
+					for(int k = bucketStart[bucket]; k < bucketStart[bucket + 1]; k++) {
+						int j = sorted[k];
+						if(j <= i || cellX[j] != cx || cellY[j] != cy) continue; //each pair once, and only from its own cell
+
+						double reach = radius[i] + radius[j] - tolerance;
+						if(reach < 0) continue;
+						double dx = x[j] - x[i];
+						double dy = y[j] - y[i];
+						if(dx*dx + dy*dy <= reach * reach) addPair(i, j);
+					}
+				}
+			}
+		}
+
+		//report pairs in the order a nested loop over i and j would find them:
+		Arrays.sort(pairs, 0, pairCount);
+		return pairCount;
+	}
+
+	private void buildGrid(ParticleStore store, double cellSize) {
+		int n = store.size;
+		if(cellX.length < n) {
+			cellX = new long[store.capacity()];
+			cellY = new long[store.capacity()];
+			sorted = new int[store.capacity()];
+		}
+		int buckets = Integer.highestOneBit(Math.max(2, n - 1)) << 1; //power of two at least n
+		if(bucketStart.length != buckets + 1) bucketStart = new int[buckets + 1];
+		else Arrays.fill(bucketStart, 0);
+
+		//count the particles in each bucket, then turn the counts into start positions:
+		int mask = buckets - 1;
+		for(int i = 0; i < n; i++) {
+			cellX[i] = (long)Math.floor(store.x[i] / cellSize);
+			cellY[i] = (long)Math.floor(store.y[i] / cellSize);
+			bucketStart[(hash(cellX[i], cellY[i]) & mask) + 1]++;
+		}
+		for(int b = 0; b < buckets; b++) {
+			bucketStart[b + 1] += bucketStart[b];
+		}
+
+		//place each particle, filling every bucket from its end back towards its start:
+		for(int i = n - 1; i >= 0; i--) {
+			int bucket = hash(cellX[i], cellY[i]) & mask;
+			sorted[--bucketStart[bucket + 1]] = i;
+		}
+		//bucketStart[b + 1] now points at the start of bucket b; shift the starts back into place:
+		System.arraycopy(bucketStart, 1, bucketStart, 0, buckets);
+		bucketStart[buckets] = n;
+	}
+
+	private static int hash(long cx, long cy) {
+		long h = cx * 0x9E3779B97F4A7C15L + cy * 0xC2B2AE3D27D4EB4FL;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private void addPair(int i, int j) {
+		if(pairCount == pairs.length) pairs = Arrays.copyOf(pairs, 2 * pairs.length);
+		pairs[pairCount++] = ((long)i << 32) | j;
+	}
+
+	public int getFirst(int pair) {
+		return (int)(pairs[pair] >>> 32);
+	}
+
+	public int getSecond(int pair) {
+		return (int)pairs[pair];
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+}
@@ -0,0 +1,244 @@
+import java.util.Random;
+
+/**
+ * DirectSumSolver
+ * Exact O(n^2) solver that sums the gravity between every pair of particles.
+ * <p>
+ * When the whole store is computed at once, each pair is visited only once and its force is
+ * applied to both particles (Newton's third law). Particles are processed in tiles small enough
+ * that a tile's coordinates stay in cache while it is compared against every later tile.
+ * Ranges of particles, as used by <code>ParallelStepper</code>, are summed one target at a time
+ * so that no two threads write to the same particle.
+ * <p>
+ * Both are written so that the JIT compiler can turn their inner loops into SIMD instructions,
+ * evaluating several interactions at once on CPUs with AVX. The pair loop does this on its own.
+ * A loop that sums into a single accumulator can't be vectorized, so for ranges there are two
+ * kernels. The lane kernel writes each target's interactions into a scratch array in one
+ * vectorizable, branch-free pass and then adds them up in four independent lanes. The scalar
+ * kernel sums in a single loop. Ranges always use the lane kernel, whether or not the JVM
+ * vectorizes it, so the order each target's interactions are added in (and so every result) is
+ * the same on any JVM. The scalar kernel is only kept so that benchmarks can compare the two.
+ * @author Russell Kaplan
+ *
+ */
+public class DirectSumSolver implements ForceSolver {
+
+	final private static int TILE_SIZE = 256; //particles per tile; four arrays of this many doubles fit in L1 cache
+	final private static double VALIDATION_TOLERANCE = 1E-9; //relative, against the reference formulas
+
+	//each thread's scratch arrays for the lane kernel, holding one target's x and y interactions:
+	final private static ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			return new double[2][0];
+		}
+	};
+
+	private static volatile boolean laneKernel = true;
+
+	@Override
+	public void computeAccelerations(ParticleStore store, double gravConstant) {
+		double[] x = store.x;
+		double[] y = store.y;
+		double[] mass = store.mass;
+		double[] ax = store.ax;
+		double[] ay = store.ay;
+		int n = store.size;
+
+		for(int i = 0; i < n; i++) {
+			ax[i] = ay[i] = 0;
+		}
+
+		for(int tileStart = 0; tileStart < n; tileStart += TILE_SIZE) {
+			int tileEnd = Math.min(n, tileStart + TILE_SIZE);
+
+			//pairs within the tile, then pairs between the tile and every later tile:
+			accumulatePairs(x, y, mass, ax, ay, tileStart, tileEnd, tileStart, tileEnd);
+			for(int otherStart = tileEnd; otherStart < n; otherStart += TILE_SIZE) {
+				accumulatePairs(x, y, mass, ax, ay, tileStart, tileEnd, otherStart, Math.min(n, otherStart + TILE_SIZE));
+			}
+		}
+
+		//the pair loop leaves out the gravitational constant:
+		for(int i = 0; i < n; i++) {
+			ax[i] *= gravConstant;
+			ay[i] *= gravConstant;
+		}
+	}
+
+	/**
+	 * Adds the mutual attraction of every pair (i, j) with i in [iStart, iEnd), j in [jStart, jEnd)
+	 * and i &lt; j, divided by the gravitational constant. The tiles must either be identical or not overlap.
+	 */
+	private static void accumulatePairs(double[] x, double[] y, double[] mass, double[] ax, double[] ay, 
+			int iStart, int iEnd, int jStart, int jEnd) {
+		for(int i = iStart; i < iEnd; i++) {
+			double xi = x[i];
+			double yi = y[i];
+			double mi = mass[i];
+			double axi = 0;
+			double ayi = 0;
+			for(int j = (jStart == iStart ? i + 1 : jStart); j < jEnd; j++) {
+				double dx = x[j] - xi;
+				double dy = y[j] - yi;
+				double distSquared = dx*dx + dy*dy;
+				double inverseCube = 1 / (distSquared * Math.sqrt(distSquared));
+				double fx = dx * inverseCube;
+				double fy = dy * inverseCube;
+				axi += mass[j] * fx;
+				ayi += mass[j] * fy;
+				ax[j] -= mi * fx;
+				ay[j] -= mi * fy;
+			}
+			ax[i] += axi;
+			ay[i] += ayi;
+		}
+	}
+
+	@Override
+	public void prepare(ParticleStore store, double gravConstant) {
+		//nothing to precompute
+	}
+
+	@Override
+	public void computeAccelerations(ParticleStore store, double gravConstant, int from, int to) {
+		if(laneKernel) computeAccelerationsInLanes(store, gravConstant, from, to);
+		else computeAccelerationsScalar(store, gravConstant, from, to);
+	}
+
+	private static void computeAccelerationsInLanes(ParticleStore store, double gravConstant, int from, int to) {
+		double[] x = store.x;
+		double[] y = store.y;
+		double[] mass = store.mass;
+		int n = store.size;
+		double[][] buffers = scratch.get();
+		if(buffers[0].length < n) {
+			buffers[0] = new double[store.capacity()];
+			buffers[1] = new double[store.capacity()];
+		}
+		double[] fx = buffers[0];
+		double[] fy = buffers[1];
+
+		for(int i = from; i < to; i++) {
+			double xi = x[i];
+			double yi = y[i];
+			//no branch for j == i, which would stop the loop being vectorized; its NaN is overwritten below
+			for(int j = 0; j < n; j++) {
+				double dx = x[j] - xi;
+				double dy = y[j] - yi;
+				double distSquared = dx*dx + dy*dy;
+				double scale = mass[j] / (distSquared * Math.sqrt(distSquared));
+				fx[j] = scale * dx;
+				fy[j] = scale * dy;
+			}
+			fx[i] = 0;
+			fy[i] = 0;
+
+			double ax0 = 0, ax1 = 0, ax2 = 0, ax3 = 0;
+			double ay0 = 0, ay1 = 0, ay2 = 0, ay3 = 0;
+			int j = 0;
+			for(; j + 3 < n; j += 4) {
+				ax0 += fx[j];
+				ax1 += fx[j + 1];
+				ax2 += fx[j + 2];
+				ax3 += fx[j + 3];
+				ay0 += fy[j];
+				ay1 += fy[j + 1];
+				ay2 += fy[j + 2];
+				ay3 += fy[j + 3];
+			}
+			for(; j < n; j++) { //the tail that doesn't fill all four lanes
+				ax0 += fx[j];
+				ay0 += fy[j];
+			}
+			store.ax[i] = gravConstant * ((ax0 + ax1) + (ax2 + ax3));
+			store.ay[i] = gravConstant * ((ay0 + ay1) + (ay2 + ay3));
+		}
+	}
+
+	private static void computeAccelerationsScalar(ParticleStore store, double gravConstant, int from, int to) {
+		double[] x = store.x;
+		double[] y = store.y;
+		double[] mass = store.mass;
+		int n = store.size;
+
+		for(int i = from; i < to; i++) {
+			double xi = x[i];
+			double yi = y[i];
+			double axi = 0;
+			double ayi = 0;
+			for(int j = 0; j < n; j++) {
+				if(j==i) continue;
+				double dx = x[j] - xi;
+				double dy = y[j] - yi;
+				double distSquared = dx*dx + dy*dy;
+				double scale = mass[j] / (distSquared * Math.sqrt(distSquared));
+				axi += scale * dx;
+				ayi += scale * dy;
+			}
+			store.ax[i] = gravConstant * axi;
+			store.ay[i] = gravConstant * ayi;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "direct sum";
+	}
+
+	/**
+	 * Checks the range kernel against the reference formulas on a small random cluster of particles.
+	 * @param lanes whether to check the lane kernel rather than the scalar one
+	 * @return whether every acceleration is within <code>VALIDATION_TOLERANCE</code> of the reference
+	 */
+	static boolean validate(boolean lanes) {
+		Random random = new Random(1);
+		ParticleStore store = new ParticleStore();
+		for(int i = 0; i < 37; i++) { //not a multiple of four, so the tail is checked too
+			store.add(random.nextGaussian() * 1E6, random.nextGaussian() * 1E6, 0, 0, 0, 0, 1E20 * (1 + random.nextDouble()), 1);
+		}
+		double gravConstant = 6.67384E-11;
+		if(lanes) computeAccelerationsInLanes(store, gravConstant, 0, store.size);
+		else computeAccelerationsScalar(store, gravConstant, 0, store.size);
+
+		for(int i = 0; i < store.size; i++) {
+			double fx = 0;
+			double fy = 0;
+			for(int j = 0; j < store.size; j++) {
+				if(j == i) continue;
+				fx += forceOfGravityX(gravConstant, store.mass[i], store.x[i], store.y[i], store.mass[j], store.x[j], store.y[j]);
+				fy += forceOfGravityY(gravConstant, store.mass[i], store.x[i], store.y[i], store.mass[j], store.x[j], store.y[j]);
+			}
+			double ax = fx / store.mass[i];
+			double ay = fy / store.mass[i];
+			double error = Math.hypot(store.ax[i] - ax, store.ay[i] - ay) / Math.hypot(ax, ay);
+			if(!(error <= VALIDATION_TOLERANCE)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether ranges of particles are summed with the vectorizable lane kernel
+	 */
+	public static boolean isUsingLaneKernel() {
+		return laneKernel;
+	}
+
+	/**
+	 * Switches ranges to the scalar kernel or back, so benchmarks can compare them. Changes the
+	 * results of a simulation, so not to be called while one is being stepped.
+	 */
+	static void setLaneKernel(boolean lanes) {
+		laneKernel = lanes;
+	}
+
+	//the original pairwise force formulas, kept as the reference that the kernels above are checked against:
+	public static double forceOfGravityX(double gravConstant, double m1, double x1, double y1, double m2, double x2, double y2) {
+		return gravConstant * m1 * m2 * (x2 - x1) / Math.pow(OrbitalSimulation.distance(x1, y1, x2, y2), 3);
+	}
+
+	public static double forceOfGravityY(double gravConstant, double m1, double x1, double y1, double m2, double x2, double y2) {
+		return gravConstant * m1 * m2 * (y2 - y1) / Math.pow(OrbitalSimulation.distance(x1, y1, x2, y2), 3);
+	}
+
+}
@@ -0,0 +1,290 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * EnsembleRunner
+ * Runs many perturbed variants of a saved simulation at once, for stability studies, and writes
+ * a line of summary metrics for each to a CSV file as it finishes.
+ * <p>
+ * The variants are described by a <code>SweepSpec</code>. Each runs on its own headless
+ * <code>OrbitalEngine</code>, and as many run at a time as there are threads (by default, one per
+ * core). A member is unstable from its first merge or ejection. A particle counts as ejected when
+ * its distance from the center of mass exceeds <code>--ejection-radius</code> times the largest
+ * such distance at the start.
+ * <p>
+ * Usage: <code>java EnsembleRunner base.orbital (--steps N | --time T) [options]</code>
+ * <pre>
+ *   --steps N               number of steps each member takes
+ *   --time T                amount of simulated time each member advances (the number of steps depends on its dt)
+ *   --dt VALUES             time intervals to try
+ *   --g VALUES              gravitational constants to try
+ *   --collisions MODES      elastic, inelastic or both (elastic,inelastic)
+ *   --perturb VALUES        sizes of random velocity perturbations to try, relative to each particle's speed (default: 0)
+ *   --repeats N             members per combination of values, each perturbed differently (default: 1)
+ *   --seed S                seed for the perturbations (default: 1)
+ *   --integrator NAME       one of Integrator.NAMES (default: Euler)
+ *   --barnes-hut THETA      use Barnes-Hut gravity with the given opening angle
+ *   --threads N             members to run at once (default: one per core)
+ *   --ejection-radius R     multiple of the starting size beyond which a particle is ejected (default: 10)
+ *   --check-every N         steps between checks for ejections (default: 100)
+ *   --stop-when-unstable    end each member at its first merge or ejection
+ *   --out FILE              where to write the results (default: base-ensemble.csv)
+ * </pre>
+ * <code>VALUES</code> is a comma-separated list, or <code>FROM:TO:COUNT</code> for evenly spaced values.
+ * @author Russell Kaplan
+ *
+ */
+public class EnsembleRunner {
+
+	final private static int MAX_ENERGY_PARTICLES = 20000; //energy is O(n^2), but only measured at the start and end of each member
+	final private static String COLUMNS = "member,dt,g,collisions,perturbation,seed,steps,time,stable,survival_time,merges,ejections,particles,energy_drift,wall_seconds";
+
+	private SimulationState base;
+	private long steps = -1;
+	private double time = -1;
+	private String integrator = "Euler";
+	private double theta = -1;
+	private double ejectionRadius = 10;
+	private int checkEvery = 100;
+	private boolean stopWhenUnstable;
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		if(args.length == 0) {
+			usage("no base file given");
+			return;
+		}
+
+		File input = new File(args[0]);
+		EnsembleRunner runner = new EnsembleRunner();
+		SweepSpec sweep = new SweepSpec();
+		int threads = Runtime.getRuntime().availableProcessors();
+		File output = null;
+
+		try {
+			for(int i = 1; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--steps")) runner.steps = Long.parseLong(args[++i]);
+				else if(arg.equals("--time")) runner.time = Double.parseDouble(args[++i]);
+				else if(arg.equals("--dt")) sweep.setTimeIntervals(SweepSpec.parseValues(args[++i]));
+				else if(arg.equals("--g")) sweep.setGravConstants(SweepSpec.parseValues(args[++i]));
+				else if(arg.equals("--collisions")) sweep.setCollisionModes(SweepSpec.parseCollisionModes(args[++i]));
+				else if(arg.equals("--perturb")) sweep.setPerturbations(SweepSpec.parseValues(args[++i]));
+				else if(arg.equals("--repeats")) sweep.setRepeats(Integer.parseInt(args[++i]));
+				else if(arg.equals("--seed")) sweep.setSeed(Long.parseLong(args[++i]));
+				else if(arg.equals("--integrator")) runner.integrator = args[++i];
+				else if(arg.equals("--barnes-hut")) runner.theta = Double.parseDouble(args[++i]);
+				else if(arg.equals("--threads")) threads = Math.max(1, Integer.parseInt(args[++i]));
+				else if(arg.equals("--ejection-radius")) runner.ejectionRadius = Double.parseDouble(args[++i]);
+				else if(arg.equals("--check-every")) runner.checkEvery = Math.max(1, Integer.parseInt(args[++i]));
+				else if(arg.equals("--stop-when-unstable")) runner.stopWhenUnstable = true;
+				else if(arg.equals("--out")) output = new File(args[++i]);
+				else {
+					usage("unknown option " + arg);
+					return;
+				}
+			}
+			Integrator.forName(runner.integrator); //fail now rather than in every member
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			usage("missing value for " + args[args.length - 1]);
+			return;
+		}
+		catch(IllegalArgumentException e) { //including NumberFormatException
+			usage(e.getMessage());
+			return;
+		}
+
+		if((runner.steps < 0) == (runner.time < 0)) {
+			usage("exactly one of --steps and --time is required");
+			return;
+		}
+
+		String baseName = input.getName().endsWith(".orbital") ? input.getName().substring(0, input.getName().length() - ".orbital".length()) : input.getName();
+		if(output == null) output = new File(input.getAbsoluteFile().getParentFile(), baseName + "-ensemble.csv");
+
+		try {
+			runner.base = SimulationState.load(input);
+		}
+		catch(IOException e) {
+			System.err.println("Could not read " + input + ": " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		catch(ClassNotFoundException e) {
+			System.err.println(input + " is not a valid .orbital file: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		List<SweepSpec.Member> members = sweep.members(runner.base);
+		System.out.println("Running " + members.size() + " members of " + input + " (" + runner.base.getParticleArray().length + " particles) on "
+				+ threads + " thread" + (threads == 1 ? "" : "s") + ", writing to " + output);
+
+		int failures;
+		try {
+			failures = runner.run(members, threads, output);
+		}
+		catch(IOException e) {
+			System.err.println("Could not write " + output + ": " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if(failures > 0) {
+			System.err.println(failures + " member" + (failures == 1 ? "" : "s") + " failed.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs every member on a pool of <code>threads</code> threads, writing each one's results to <code>output</code> as it finishes.
+	 * @return how many members failed
+	 */
+	private int run(List<SweepSpec.Member> members, int threads, File output) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(output));
+		out.println(COLUMNS);
+		out.flush();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CompletionService<String> results = new ExecutorCompletionService<String>(pool);
+		for(final SweepSpec.Member member : members) {
+			results.submit(new Callable<String>() {
+				public String call() {
+					return runMember(member);
+				}
+			});
+		}
+
+		int failures = 0;
+		long start = System.currentTimeMillis();
+		try {
+			for(int done = 1; done <= members.size(); done++) {
+				try {
+					out.println(results.take().get());
+					out.flush();
+				}
+				catch(ExecutionException e) {
+					System.err.println("A member failed: " + e.getCause());
+					failures++;
+				}
+				System.out.println("  " + done + " of " + members.size() + " done (" + (System.currentTimeMillis() - start) / 1000 + " s)");
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			pool.shutdownNow();
+			out.close();
+		}
+		return failures;
+	}
+
+	/**
+	 * Runs one member to the end (or until it's unstable, if asked).
+	 * @return its line of the results file
+	 */
+	private String runMember(SweepSpec.Member member) {
+		long wallStart = System.nanoTime();
+		OrbitalEngine engine = new OrbitalEngine(member.createState(base));
+		engine.setUpdatingViews(false);
+		engine.setIntegrator(Integrator.forName(integrator));
+		if(theta >= 0) engine.setSolver(new BarnesHutSolver(theta));
+
+		final int[] merges = new int[1];
+		engine.setMergeListener(new OrbitalEngine.MergeListener() {
+			public void particlesMerged(List<Particle[]> clusters, List<Particle> merged) {
+				for(Particle[] cluster : clusters) {
+					merges[0] += cluster.length - 1; //as many as it would take to merge them two at a time
+				}
+			}
+		});
+
+		ParticleStore store = engine.getStore();
+		boolean measureEnergy = store.size <= MAX_ENERGY_PARTICLES;
+		double initialEnergy = measureEnergy ? StepProfiler.totalEnergy(store, engine.getGravConstant()) : Double.NaN;
+		double limit = ejectionRadius * extent(store);
+		Set<Long> ejected = new HashSet<Long>();
+
+		long total = (steps >= 0) ? steps : (long)Math.ceil(time / engine.getTimeInterval());
+		double startTime = engine.getTimeElapsed();
+		double survivalTime = -1;
+		long step = 0;
+		while(step < total) {
+			engine.step();
+			step++;
+
+			if(step % checkEvery == 0 || step == total) countEjections(engine, limit, ejected);
+			if(survivalTime < 0 && (merges[0] > 0 || !ejected.isEmpty())) {
+				survivalTime = engine.getTimeElapsed() - startTime;
+				if(stopWhenUnstable) break;
+			}
+		}
+
+		boolean stable = survivalTime < 0;
+		double elapsed = engine.getTimeElapsed() - startTime;
+		double energyDrift = Double.NaN;
+		if(measureEnergy) energyDrift = (StepProfiler.totalEnergy(store, engine.getGravConstant()) - initialEnergy) / Math.abs(initialEnergy);
+
+		return member.index + "," + member.timeInterval + "," + member.gravConstant + "," + (member.elasticCollisions ? "elastic" : "inelastic") + ","
+				+ member.perturbation + "," + member.seed + "," + step + "," + elapsed + "," + stable + "," + (stable ? elapsed : survivalTime) + ","
+				+ merges[0] + "," + ejected.size() + "," + store.size + "," + energyDrift + "," + (System.nanoTime() - wallStart) / 1E9;
+	}
+
+	/**
+	 * @return the largest distance of any particle from the center of mass
+	 */
+	private static double extent(ParticleStore store) {
+		double[] center = centerOfMass(store);
+		double extent = 0;
+		for(int i = 0; i < store.size; i++) {
+			extent = Math.max(extent, Math.hypot(store.x[i] - center[0], store.y[i] - center[1]));
+		}
+		return extent;
+	}
+
+	/**
+	 * Adds the ids of any particles farther than <code>limit</code> from the center of mass to <code>ejected</code>.
+	 */
+	private static void countEjections(OrbitalEngine engine, double limit, Set<Long> ejected) {
+		if(limit <= 0) return; //a single particle, or all at one point
+		ParticleStore store = engine.getStore();
+		double[] center = centerOfMass(store);
+		for(int i = 0; i < store.size; i++) {
+			if(Math.hypot(store.x[i] - center[0], store.y[i] - center[1]) > limit) ejected.add(engine.getParticles().get(i).getId());
+		}
+	}
+
+	private static double[] centerOfMass(ParticleStore store) {
+		double mass = 0, x = 0, y = 0;
+		for(int i = 0; i < store.size; i++) {
+			mass += store.mass[i];
+			x += store.mass[i] * store.x[i];
+			y += store.mass[i] * store.y[i];
+		}
+		if(mass == 0) return new double[2];
+		return new double[] {x / mass, y / mass};
+	}
+
+	private static void usage(String problem) {
+		System.err.println("Error: " + problem);
+		System.err.println("Usage: java EnsembleRunner base.orbital (--steps N | --time T) [--dt VALUES] [--g VALUES] [--collisions MODES]");
+		System.err.println("                           [--perturb VALUES] [--repeats N] [--seed S] [--integrator NAME] [--barnes-hut THETA] [--threads N]");
+		System.err.println("                           [--ejection-radius R] [--check-every N] [--stop-when-unstable] [--out FILE]");
+		System.err.println("VALUES is a comma-separated list, or FROM:TO:COUNT for evenly spaced values.");
+		System.exit(2);
+	}
+
+}
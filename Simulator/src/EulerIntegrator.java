@@ -0,0 +1,22 @@
+/**
+ * EulerIntegrator
+ * First-order semi-implicit (symplectic) Euler: velocities are updated from the accelerations
+ * at the start of the step, then positions from the new velocities. One force evaluation per step.
+ * @author Russell Kaplan
+ *
+ */
+public class EulerIntegrator extends Integrator {
+
+	@Override
+	public void step(ParticleStore store, PhysicsKernel kernel, double timeInterval) {
+		kernel.ensureAccelerations(store);
+		kernel.kick(store, timeInterval);
+		kernel.drift(store, timeInterval);
+	}
+
+	@Override
+	public String getName() {
+		return "Euler";
+	}
+
+}
@@ -0,0 +1,33 @@
+/**
+ * ForceSolver
+ * Computes the gravitational acceleration of every particle in a simulation.
+ * @author Russell Kaplan
+ *
+ */
+public interface ForceSolver {
+
+	/**
+	 * Computes the acceleration of each particle due to the gravity of all the others,
+	 * storing the results in <code>store.ax</code> and <code>store.ay</code>.
+	 * @param store the particles in the simulation
+	 * @param gravConstant the gravitational constant
+	 */
+	public void computeAccelerations(ParticleStore store, double gravConstant);
+
+	/**
+	 * Does any work that must happen once per step before accelerations are computed for
+	 * ranges of particles, such as building a tree.
+	 */
+	public void prepare(ParticleStore store, double gravConstant);
+
+	/**
+	 * Computes the accelerations of particles <code>from</code> (inclusive) to <code>to</code> (exclusive).
+	 * Must be preceded by a call to <code>prepare</code> for the current positions. Calls for
+	 * disjoint ranges may run at the same time on different threads, and the result for each
+	 * particle must not depend on how the particles are split into ranges.
+	 */
+	public void computeAccelerations(ParticleStore store, double gravConstant, int from, int to);
+
+	public String getName();
+
+}
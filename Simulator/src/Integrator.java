@@ -0,0 +1,45 @@
+/**
+ * Integrator
+ * Advances every particle in a <code>ParticleStore</code> by one time step.
+ * @author Russell Kaplan
+ *
+ */
+public abstract class Integrator {
+
+	final public static String[] NAMES = {"Euler", "Leapfrog", "Velocity Verlet", "RK4", "Yoshida", "Block Timestep"};
+
+	/**
+	 * Advances the particles in <code>store</code> by <code>timeInterval</code>.
+	 * @param store the particles to move
+	 * @param kernel computes accelerations and applies kicks and drifts
+	 * @param timeInterval the length of the step
+	 */
+	public abstract void step(ParticleStore store, PhysicsKernel kernel, double timeInterval);
+
+	public abstract String getName();
+
+	/**
+	 * @param name one of <code>NAMES</code> (case-insensitive)
+	 * @return a new <code>Integrator</code> of the named type
+	 */
+	public static Integrator forName(String name) {
+		if(name.equalsIgnoreCase("Euler")) return new EulerIntegrator();
+		if(name.equalsIgnoreCase("Leapfrog")) return new LeapfrogIntegrator();
+		if(name.equalsIgnoreCase("Velocity Verlet")) return new VelocityVerletIntegrator();
+		if(name.equalsIgnoreCase("RK4")) return new RK4Integrator();
+		if(name.equalsIgnoreCase("Yoshida")) return new YoshidaIntegrator();
+		if(name.equalsIgnoreCase("Block Timestep")) return new BlockTimestepIntegrator();
+		throw new IllegalArgumentException("Unknown integrator: " + name);
+	}
+
+	/**
+	 * @return the integrator after <code>current</code> in <code>NAMES</code>, wrapping around at the end
+	 */
+	public static Integrator next(Integrator current) {
+		for(int i = 0; i < NAMES.length; i++) {
+			if(NAMES[i].equals(current.getName())) return forName(NAMES[(i + 1) % NAMES.length]);
+		}
+		return forName(NAMES[0]);
+	}
+
+}
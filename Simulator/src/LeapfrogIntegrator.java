@@ -0,0 +1,24 @@
+/**
+ * LeapfrogIntegrator
+ * Second-order symplectic kick-drift-kick leapfrog. The accelerations at the end of one step
+ * are reused for the first half kick of the next, so it costs one force evaluation per step.
+ * @author Russell Kaplan
+ *
+ */
+public class LeapfrogIntegrator extends Integrator {
+
+	@Override
+	public void step(ParticleStore store, PhysicsKernel kernel, double timeInterval) {
+		kernel.ensureAccelerations(store);
+		kernel.kick(store, timeInterval / 2);
+		kernel.drift(store, timeInterval);
+		kernel.computeAccelerations(store);
+		kernel.kick(store, timeInterval / 2);
+	}
+
+	@Override
+	public String getName() {
+		return "Leapfrog";
+	}
+
+}
@@ -0,0 +1,477 @@
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * OrbitalEngine
+ * The physics of a simulation, with no display attached: the particles, how gravity is computed,
+ * how they are integrated and how collisions are resolved. <code>OrbitalSimulation</code> drives
+ * one of these from the OSP animation thread, and <code>BatchRunner</code> drives one from the
+ * command line.
+ * @author Russell Kaplan
+ *
+ */
+public class OrbitalEngine {
+
+	final private static boolean DEBUG = false;
+
+	//the scale of the simulator's starting view, which reaches 8.25E6 (1.1 times the default planet's orbit) either side of the sun across 800 pixels:
+	final public static double WORLD_UNITS_PER_PIXEL = 2 * 8.25E6 / 800;
+	final public static int COLLISION_TOLERANCE_PIXELS = 3; //how many pixels "deep" one planet must graze another to trigger a collision
+	final public static double DEFAULT_COLLISION_TOLERANCE = COLLISION_TOLERANCE_PIXELS * WORLD_UNITS_PER_PIXEL;
+
+	private List<Particle> particles;
+	private ParticleStore store; //physical state of particles, in the same order as particles
+
+	private double timeElapsed;
+	private long stepCount;
+	private double timeInterval;
+	private double gravConstant;
+
+	private boolean elasticCollisions;
+
+	private PhysicsKernel kernel;
+	private Integrator integrator;
+	private CollisionDetector collisionDetector;
+	private Particle[] colliding = new Particle[0]; //pairs of particles found by collisionDetector in the current step
+	private int[] clusterParent = new int[0]; //union-find forest over store indices, for grouping inelastic collisions
+	private int[] clusterSize = new int[0];
+
+	private MergeListener mergeListener;
+	private TrajectoryRecorder recorder;
+	private Autosaver autosaver;
+	private StepProfiler profiler;
+	private boolean updatingViews; //whether each step moves the drawn particles and trails
+	private int structureVersion; //changes whenever particles are added, removed or replaced
+	private long modificationVersion; //changes whenever anything a SimulationState would hold changes
+
+	public OrbitalEngine(double timeInterval, double gravConstant) {
+		this.particles = new ArrayList<Particle>();
+		this.store = new ParticleStore();
+		this.timeElapsed = 0;
+		this.timeInterval = timeInterval;
+		this.gravConstant = gravConstant;
+		this.elasticCollisions = false;
+
+		this.kernel = new PhysicsKernel(new DirectSumSolver(), gravConstant);
+		this.integrator = new EulerIntegrator();
+		this.collisionDetector = new CollisionDetector(DEFAULT_COLLISION_TOLERANCE);
+		this.updatingViews = true;
+	}
+
+	public OrbitalEngine(SimulationState state) {
+		this(state.getTimeInterval(), state.getGravConstant());
+		loadState(state);
+	}
+
+	/**
+	 * Advances the simulation by one time interval.
+	 */
+	public void step() {
+		if(profiler != null) profiler.stepStarted();
+		moveParticles();
+
+		timeElapsed += timeInterval;
+		stepCount++;
+		modificationVersion++;
+		if(recorder != null) recorder.stepped(this);
+		if(autosaver != null) autosaver.stepped(this);
+		if(profiler != null) profiler.stepFinished(this);
+
+		if(DEBUG) {
+			System.out.println("\nParticle positions:");
+			for(int i = 0; i < particles.size(); i++) {
+				System.out.println("Particle " + i + ": X = " + particles.get(i).getX() + ", Y =" + particles.get(i).getY());
+			}
+		}
+	}
+
+	private void moveParticles() {
+		integrator.step(store, kernel, timeInterval);
+		if(profiler != null && updatingViews) profiler.lap(StepProfiler.INTEGRATION);
+
+		if(DEBUG) {
+			System.out.println("Acceleration of each particle (" + integrator.getName() + ", " + kernel.getSolver().getName() + "): ");
+			for(int i = 0; i < store.size; i++) {
+				System.out.println("Particle " + i + ": X = " + store.ax[i] + ", Y = " + store.ay[i]);
+			}
+		}
+
+		for(int i = 0; i < particles.size(); i++) {
+			if(updatingViews) particles.get(i).updateView();
+			particles.get(i).clearStaleCollision();
+		}
+		if(profiler != null) profiler.lap(updatingViews ? StepProfiler.RENDERING : StepProfiler.INTEGRATION); //otherwise there's nothing to render
+
+		//look up the colliding particles before handling any, since merging rebuilds the store:
+		int collisions = collisionDetector.findCollisions(store);
+		if(colliding.length < 2 * collisions) colliding = new Particle[4 * collisions];
+		for(int k = 0; k < collisions; k++) {
+			colliding[2*k] = particles.get(collisionDetector.getFirst(k));
+			colliding[2*k + 1] = particles.get(collisionDetector.getSecond(k));
+		}
+		if(profiler != null) profiler.lap(StepProfiler.COLLISIONS);
+
+		if(elasticCollisions) {
+			for(int k = 0; k < collisions; k++) {
+				Particle p1 = colliding[2*k];
+				Particle p2 = colliding[2*k + 1];
+				if(isNewCollision(p1, p2)) {
+					computeElasticCollision(p1, p2);
+				}
+			}
+		}
+		else if(collisions > 0) mergeClusters(collisions);
+		if(profiler != null) profiler.lap(StepProfiler.MERGES);
+	}
+
+	/**
+	 * Bounces <code>p1</code> and <code>p2</code> off each other, conserving momentum and kinetic energy.
+	 */
+	private void computeElasticCollision(Particle p1, Particle p2) {
+		p1.setLatestCollision(p2);
+		p2.setLatestCollision(p1);
+
+		//2 * (m1v1 + m2v2 / m1 + m2) - v0
+		double m1, vx1, vy1, m2, vx2, vy2;
+		m1 = p1.getMass();
+		vx1 = p1.getXVel();
+		vy1 = p1.getYVel();
+		m2 = p2.getMass();
+		vx2 = p2.getXVel();
+		vy2 = p2.getYVel();
+
+		if(DEBUG) {
+			System.out.println("m1: " + m1);
+			System.out.println("vx1: " + vx1);
+			System.out.println("vy1: " + vy1);
+			System.out.println("m2: " + m2);
+			System.out.println("vx2: " + vx2);
+			System.out.println("vy2: " + vy2);
+		}
+
+		p1.setXVel(2 * (m1*vx1 + m2*vx2) / (m1 + m2) - vx1);
+		p2.setXVel(2 * (m1*vx1 + m2*vx2) / (m1 + m2) - vx2);
+
+		if(DEBUG) {
+			System.out.println("new vx1: " + p1.getXVel());
+			System.out.println("new vx2: " + p2.getXVel());
+			System.out.println("Collision happened!");
+		}
+
+		p1.setYVel(2 * (m1*vy1 + m2*vy2) / (m1 + m2) - vy1);
+		p2.setYVel(2 * (m1*vy1 + m2*vy2) / (m1 + m2) - vy2);
+	}
+
+	/**
+	 * Merges every group of particles connected by this step's collisions into one particle, so that
+	 * a particle touching two others merges with both, and rebuilds the store once for all of them.
+	 * Merged particles are removed from the list in a single pass, and their replacements are added to
+	 * the end in the order their clusters were first found.
+	 */
+	private void mergeClusters(int collisions) {
+		int n = particles.size();
+		if(clusterParent.length < n) {
+			clusterParent = new int[store.capacity()];
+			clusterSize = new int[store.capacity()];
+		}
+		for(int i = 0; i < n; i++) {
+			clusterParent[i] = i;
+			clusterSize[i] = 1;
+		}
+
+		boolean merging = false;
+		for(int k = 0; k < collisions; k++) {
+			Particle p1 = colliding[2*k];
+			Particle p2 = colliding[2*k + 1];
+			if(isNewCollision(p1, p2)) {
+				union(p1.getIndex(), p2.getIndex());
+				merging = true;
+			}
+		}
+		if(!merging) return;
+
+		Map<Integer, List<Particle>> clusters = new LinkedHashMap<Integer, List<Particle>>();
+		List<Particle> survivors = new ArrayList<Particle>(n);
+		for(int i = 0; i < n; i++) {
+			int root = find(i);
+			if(clusterSize[root] == 1) {
+				survivors.add(particles.get(i));
+				continue;
+			}
+			List<Particle> cluster = clusters.get(root);
+			if(cluster == null) {
+				cluster = new ArrayList<Particle>(clusterSize[root]);
+				clusters.put(root, cluster);
+			}
+			cluster.add(particles.get(i));
+		}
+
+		List<Particle[]> merged = new ArrayList<Particle[]>(clusters.size());
+		List<Particle> results = new ArrayList<Particle>(clusters.size());
+		for(List<Particle> cluster : clusters.values()) {
+			Particle[] parts = cluster.toArray(new Particle[cluster.size()]);
+			Particle result = Particle.createParticleFromCollision(parts); //while the parts are still bound and current
+			merged.add(parts);
+			results.add(result);
+		}
+		for(Particle[] parts : merged) {
+			for(Particle p : parts) {
+				p.unbind();
+			}
+		}
+
+		particles.clear();
+		particles.addAll(survivors);
+		particles.addAll(results);
+		rebuildStore();
+
+		if(mergeListener != null) mergeListener.particlesMerged(merged, results);
+	}
+
+	private int find(int i) {
+		while(clusterParent[i] != i) {
+			clusterParent[i] = clusterParent[clusterParent[i]]; //path halving
+			i = clusterParent[i];
+		}
+		return i;
+	}
+
+	private void union(int i, int j) {
+		int a = find(i);
+		int b = find(j);
+		if(a == b) return;
+		if(clusterSize[a] < clusterSize[b]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		clusterParent[b] = a;
+		clusterSize[a] += clusterSize[b];
+	}
+
+	private boolean isNewCollision(Particle p1, Particle p2) {
+		if(p1.getLatestCollision() == null || p2.getLatestCollision() == null) //their collision hasn't already been computed
+			return true;
+
+		else if(p1.getLatestCollision().equals(p2) || p2.getLatestCollision().equals(p1))
+			return false; //don't count this time as a collision because it's already been computed
+
+		return true;
+	}
+
+	public void addParticle(Particle p) {
+		particles.add(p);
+		p.bind(store);
+		structureVersion++;
+		modificationVersion++;
+	}
+
+	/**
+	 * Adds <code>count</code> particles that all look the same, taking their physical state from the start of
+	 * the given columns. The state is copied straight into the store and each particle is bound where it lands,
+	 * which is much quicker than creating and adding particles one at a time when there are many.
+	 */
+	public void addParticles(int count, double[] x, double[] y, double[] vx, double[] vy, double[] mass, double[] radius,
+			String name, int pixRadius, Color color) {
+		int first = store.addAll(count, x, y, vx, vy, mass, radius);
+		for(int i = 0; i < count; i++) {
+			particles.add(new Particle(name, store, first + i, pixRadius, color));
+		}
+		structureVersion++;
+		modificationVersion++;
+	}
+
+	/**
+	 * Rebinds every particle to the store so that store indices match positions in <code>particles</code>.
+	 * Must be called whenever particles are removed or reordered.
+	 */
+	private void rebuildStore() {
+		for(Particle p : particles) {
+			p.unbind();
+		}
+		store.clear();
+		for(Particle p : particles) {
+			p.bind(store);
+		}
+		structureVersion++;
+		modificationVersion++;
+	}
+
+	/**
+	 * Replaces the contents of the simulation with copies of the particles and settings in <code>state</code>.
+	 */
+	public void loadState(SimulationState state) {
+		particles = state.getParticles();
+		rebuildStore();
+		timeElapsed = state.getTimeElapsed();
+		timeInterval = state.getTimeInterval();
+		gravConstant = state.getGravConstant();
+		kernel.setGravConstant(gravConstant);
+		elasticCollisions = state.isElasticCollisions();
+	}
+
+	public SimulationState currentState() {
+		return new SimulationState(particles, timeElapsed, timeInterval, gravConstant, elasticCollisions);
+	}
+
+	public List<Particle> getParticles() {
+		return particles;
+	}
+
+	public ParticleStore getStore() {
+		return store;
+	}
+
+	public double getTimeElapsed() {
+		return timeElapsed;
+	}
+
+	/**
+	 * @return how many steps this engine has taken, including any taken before a state was loaded
+	 */
+	public long getStepCount() {
+		return stepCount;
+	}
+
+	public double getTimeInterval() {
+		return timeInterval;
+	}
+
+	public void setTimeInterval(double timeInterval) {
+		if(timeInterval == this.timeInterval) return;
+		this.timeInterval = timeInterval;
+		modificationVersion++;
+	}
+
+	public double getGravConstant() {
+		return gravConstant;
+	}
+
+	public void setGravConstant(double gravConstant) {
+		if(gravConstant == this.gravConstant) return;
+		this.gravConstant = gravConstant;
+		modificationVersion++;
+		kernel.setGravConstant(gravConstant);
+		store.accelerationsValid = false;
+	}
+
+	public boolean isElasticCollisions() {
+		return elasticCollisions;
+	}
+
+	public void setElasticCollisions(boolean elasticCollisions) {
+		if(elasticCollisions == this.elasticCollisions) return;
+		this.elasticCollisions = elasticCollisions;
+		modificationVersion++;
+	}
+
+	public PhysicsKernel getKernel() {
+		return kernel;
+	}
+
+	public Integrator getIntegrator() {
+		return integrator;
+	}
+
+	public void setIntegrator(Integrator integrator) {
+		this.integrator = integrator;
+	}
+
+	public ForceSolver getSolver() {
+		return kernel.getSolver();
+	}
+
+	public void setSolver(ForceSolver solver) {
+		kernel.setSolver(solver);
+		store.accelerationsValid = false; //a different solver gives slightly different accelerations
+	}
+
+	public CollisionDetector getCollisionDetector() {
+		return collisionDetector;
+	}
+
+	public boolean isUpdatingViews() {
+		return updatingViews;
+	}
+
+	/**
+	 * @param updatingViews false if something else (such as <code>PhysicsRunner</code>'s snapshots) moves the drawn particles
+	 */
+	public void setUpdatingViews(boolean updatingViews) {
+		this.updatingViews = updatingViews;
+	}
+
+	public int getStructureVersion() {
+		return structureVersion;
+	}
+
+	/**
+	 * @return a number that changes whenever anything <code>currentState()</code> would hold changes: each step, added or
+	 * removed particles, loaded states and new settings. If it is the same as when a state was taken, the simulation is
+	 * still exactly that state. Changes made to particles directly, rather than through the engine, must be followed by
+	 * <code>markModified()</code>.
+	 */
+	public long getModificationVersion() {
+		return modificationVersion;
+	}
+
+	/**
+	 * Records that particles were changed from outside the engine.
+	 */
+	public void markModified() {
+		modificationVersion++;
+	}
+
+	public TrajectoryRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * @param recorder records steps as they're taken, or null to stop recording (the caller closes it)
+	 */
+	public void setRecorder(TrajectoryRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	public Autosaver getAutosaver() {
+		return autosaver;
+	}
+
+	/**
+	 * @param autosaver saves checkpoints as steps are taken, or null for none
+	 */
+	public void setAutosaver(Autosaver autosaver) {
+		this.autosaver = autosaver;
+	}
+
+	public StepProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * @param profiler times each step and its phases, or null for none
+	 */
+	public void setProfiler(StepProfiler profiler) {
+		this.profiler = profiler;
+		kernel.setProfiler(profiler);
+	}
+
+	public void setMergeListener(MergeListener mergeListener) {
+		this.mergeListener = mergeListener;
+	}
+
+	/**
+	 * Notified once per step in which inelastic collisions replaced groups of particles with single particles.
+	 */
+	public interface MergeListener {
+		/**
+		 * @param clusters the groups of particles that merged
+		 * @param merged the particle each group became, in the same order
+		 */
+		public void particlesMerged(List<Particle[]> clusters, List<Particle> merged);
+	}
+
+}
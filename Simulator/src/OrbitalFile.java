@@ -0,0 +1,345 @@
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * OrbitalFile
+ * Reads and writes version 2 of the .orbital format, a compact binary layout that depends only on
+ * the numbers in a simulation rather than on how its classes happen to be serialized. Files saved
+ * before it existed (Java serialization of <code>SimulationState</code>) are still read by
+ * <code>SimulationState.load</code>, which tells the two apart by the magic number.
+ * <p>
+ * All values are little-endian. Strings are UTF-8.
+ * <pre>
+ * offset  size  contents
+ *      0     4  magic number, the ASCII bytes "ORBT"
+ *      4     2  format version (2)
+ *      6     2  flags: bit 0 is set if the trail section is present
+ *      8     4  number of particles, n
+ *     12     4  reserved (0)
+ *     16     8  time elapsed
+ *     24     8  time interval
+ *     32     8  gravitational constant
+ *     40     1  1 if collisions are elastic, 0 if inelastic
+ *     41     7  reserved (0)
+ *     48        particle table, one column after another, each holding n values:
+ *                 x, y, x velocity, y velocity, x acceleration, y acceleration, mass, radius (8-byte doubles),
+ *                 pixel radius, color as ARGB (4-byte ints)
+ *               names: for each particle, a 4-byte length followed by that many bytes
+ *               trail section (if flagged): for each particle, its capacity, length and number of points m
+ *                 (4-byte ints), then m x coordinates, m y coordinates (4-byte floats, since trails are only drawn)
+ *                 and m weights (ints), oldest first; a capacity of 0 (and no points) means the particle had no
+ *                 trail yet, as particles added in bulk don't until they are drawn
+ *  end-4     4  CRC-32 of every byte before it
+ * </pre>
+ * Files of at least <code>MAP_THRESHOLD</code> bytes are memory-mapped rather than read into the heap.
+ * @author Russell Kaplan
+ *
+ */
+public class OrbitalFile {
+
+	final public static int VERSION = 2;
+	final public static int MAP_THRESHOLD = 1 << 20;
+
+	final private static byte[] MAGIC = {'O', 'R', 'B', 'T'};
+	final private static int FLAG_TRAILS = 1;
+	final private static int HEADER_BYTES = 48;
+	final private static int DOUBLE_COLUMNS = 8;
+	final private static int INT_COLUMNS = 2;
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * @return whether <code>file</code> starts with the version 2 magic number
+	 */
+	public static boolean isOrbitalFile(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+			while(magic.hasRemaining() && channel.read(magic) >= 0);
+			return !magic.hasRemaining() && magic.get(0) == MAGIC[0] && magic.get(1) == MAGIC[1] && magic.get(2) == MAGIC[2] && magic.get(3) == MAGIC[3];
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes <code>state</code> to <code>file</code>, returning once it is on disk.
+	 */
+	public static void write(SimulationState state, File file, boolean includeTrails) throws IOException {
+		Particle[] particles = state.getParticleArray();
+		int n = particles.length;
+
+		byte[][] names = new byte[n][];
+		long size = HEADER_BYTES + (8L * DOUBLE_COLUMNS + 4L * INT_COLUMNS) * n + 4;
+		for(int i = 0; i < n; i++) {
+			names[i] = particles[i].getName().getBytes(UTF8);
+			size += 4 + names[i].length;
+		}
+		if(includeTrails) {
+			for(Particle p : particles) {
+				if(p.hasTrail()) size += 12L * p.getTrail().getNumberOfPoints();
+				size += 12;
+			}
+		}
+		if(size > Integer.MAX_VALUE) throw new IOException("simulation too large to save (" + size + " bytes)");
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = (size >= MAP_THRESHOLD) ? channel.map(FileChannel.MapMode.READ_WRITE, 0, size) : ByteBuffer.allocate((int)size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.put(MAGIC);
+			buffer.putShort((short)VERSION);
+			buffer.putShort((short)(includeTrails ? FLAG_TRAILS : 0));
+			buffer.putInt(n);
+			buffer.putInt(0);
+			buffer.putDouble(state.getTimeElapsed());
+			buffer.putDouble(state.getTimeInterval());
+			buffer.putDouble(state.getGravConstant());
+			buffer.put((byte)(state.isElasticCollisions() ? 1 : 0));
+			buffer.position(HEADER_BYTES);
+
+			double[] column = new double[n];
+			for(int c = 0; c < DOUBLE_COLUMNS; c++) {
+				for(int i = 0; i < n; i++) {
+					column[i] = doubleColumn(particles[i], c);
+				}
+				putDoubles(buffer, column, n);
+			}
+			int[] intColumn = new int[n];
+			for(int i = 0; i < n; i++) {
+				intColumn[i] = particles[i].getPixRadius();
+			}
+			putInts(buffer, intColumn, n);
+			for(int i = 0; i < n; i++) {
+				intColumn[i] = particles[i].getColor().getRGB();
+			}
+			putInts(buffer, intColumn, n);
+
+			for(int i = 0; i < n; i++) {
+				buffer.putInt(names[i].length);
+				buffer.put(names[i]);
+			}
+
+			if(includeTrails) {
+				float[] xs = new float[0], ys = new float[0];
+				int[] weights = new int[0];
+				for(Particle p : particles) {
+					if(!p.hasTrail()) {
+						buffer.putInt(0);
+						buffer.putInt(0);
+						buffer.putInt(0);
+						continue;
+					}
+					SerializableTrail trail = p.getTrail();
+					synchronized(trail) {
+						int m = trail.getNumberOfPoints();
+						if(xs.length < m) {
+							xs = new float[m];
+							ys = new float[m];
+							weights = new int[m];
+						}
+						for(int k = 0; k < m; k++) {
+							xs[k] = (float)trail.getX(k);
+							ys[k] = (float)trail.getY(k);
+							weights[k] = trail.getWeight(k);
+						}
+						buffer.putInt(trail.getCapacity());
+						buffer.putInt(trail.getLength());
+						buffer.putInt(m);
+						putFloats(buffer, xs, m);
+						putFloats(buffer, ys, m);
+						putInts(buffer, weights, m);
+					}
+				}
+			}
+
+			buffer.putInt((int)checksum(buffer, buffer.position()));
+
+			if(buffer instanceof MappedByteBuffer) ((MappedByteBuffer)buffer).force();
+			else {
+				buffer.flip();
+				while(buffer.hasRemaining()) channel.write(buffer);
+			}
+			channel.force(true); //so a crash right after saving can't leave a partly written file
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	public static SimulationState read(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if(size < HEADER_BYTES + 4) throw new IOException(file + " is too short to be an .orbital file");
+			if(size > Integer.MAX_VALUE) throw new IOException(file + " is too large to load");
+
+			ByteBuffer buffer;
+			if(size >= MAP_THRESHOLD) buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			else {
+				buffer = ByteBuffer.allocate((int)size);
+				while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+				buffer.flip();
+			}
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			int stored = buffer.getInt((int)size - 4);
+			if(stored != (int)checksum(buffer, (int)size - 4)) throw new IOException(file + " is corrupt (checksum mismatch)");
+
+			for(int k = 0; k < MAGIC.length; k++) {
+				if(buffer.get() != MAGIC[k]) throw new IOException(file + " is not a version 2 .orbital file");
+			}
+			int version = buffer.getShort();
+			if(version > VERSION) throw new IOException(file + " was saved by a newer version (format " + version + ")");
+			int flags = buffer.getShort();
+			int n = buffer.getInt();
+			buffer.getInt();
+			double timeElapsed = buffer.getDouble();
+			double timeInterval = buffer.getDouble();
+			double gravConstant = buffer.getDouble();
+			boolean elasticCollisions = buffer.get() != 0;
+			buffer.position(HEADER_BYTES);
+
+			double[][] columns = new double[DOUBLE_COLUMNS][n];
+			for(int c = 0; c < DOUBLE_COLUMNS; c++) {
+				getDoubles(buffer, columns[c], n);
+			}
+			int[] pixRadius = new int[n];
+			int[] color = new int[n];
+			getInts(buffer, pixRadius, n);
+			getInts(buffer, color, n);
+
+			Particle[] particles = new Particle[n];
+			Map<Integer, Color> colors = new HashMap<Integer, Color>(); //most files use only a handful
+			byte[] name = new byte[64];
+			for(int i = 0; i < n; i++) {
+				int length = buffer.getInt();
+				if(name.length < length) name = new byte[length];
+				buffer.get(name, 0, length);
+				Color c = colors.get(color[i]);
+				if(c == null) {
+					c = new Color(color[i], true);
+					colors.put(color[i], c);
+				}
+				Particle p = new Particle(new String(name, 0, length, UTF8), columns[0][i], columns[1][i], columns[2][i], columns[3][i],
+						columns[6][i], pixRadius[i], c);
+				p.setXAccel(columns[4][i]);
+				p.setYAccel(columns[5][i]);
+				p.setRadius(columns[7][i]);
+				particles[i] = p;
+			}
+
+			if((flags & FLAG_TRAILS) != 0) {
+				float[] floats = new float[0];
+				for(Particle p : particles) {
+					int capacity = buffer.getInt();
+					int length = buffer.getInt();
+					int m = buffer.getInt();
+					if(floats.length < m) floats = new float[m];
+					double[] xs = new double[m];
+					double[] ys = new double[m];
+					int[] weights = new int[m];
+					getFloats(buffer, floats, m);
+					for(int k = 0; k < m; k++) {
+						xs[k] = floats[k];
+					}
+					getFloats(buffer, floats, m);
+					for(int k = 0; k < m; k++) {
+						ys[k] = floats[k];
+					}
+					getInts(buffer, weights, m);
+					if(capacity == 0) { //saved before it had a trail
+						p.setTrail(null);
+						continue;
+					}
+					SerializableTrail trail = SerializableTrail.fromPoints(capacity, length, xs, ys, weights, m);
+					trail.color = p.getColor();
+					p.setTrail(trail);
+				}
+			}
+
+			return new SimulationState(particles, timeElapsed, timeInterval, gravConstant, elasticCollisions);
+		}
+		catch(RuntimeException e) { //buffer underflows and the like from a truncated or malformed file
+			throw new IOException(file + " is not a valid .orbital file: " + e, e);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	private static double doubleColumn(Particle p, int column) {
+		switch(column) {
+			case 0: return p.getX();
+			case 1: return p.getY();
+			case 2: return p.getXVel();
+			case 3: return p.getYVel();
+			case 4: return p.getXAccel();
+			case 5: return p.getYAccel();
+			case 6: return p.getMass();
+			default: return p.getRadius();
+		}
+	}
+
+	private static void putDoubles(ByteBuffer buffer, double[] values, int count) {
+		buffer.asDoubleBuffer().put(values, 0, count);
+		buffer.position(buffer.position() + 8 * count);
+	}
+
+	private static void putInts(ByteBuffer buffer, int[] values, int count) {
+		buffer.asIntBuffer().put(values, 0, count);
+		buffer.position(buffer.position() + 4 * count);
+	}
+
+	private static void putFloats(ByteBuffer buffer, float[] values, int count) {
+		buffer.asFloatBuffer().put(values, 0, count);
+		buffer.position(buffer.position() + 4 * count);
+	}
+
+	private static void getDoubles(ByteBuffer buffer, double[] values, int count) {
+		buffer.asDoubleBuffer().get(values, 0, count);
+		buffer.position(buffer.position() + 8 * count);
+	}
+
+	private static void getInts(ByteBuffer buffer, int[] values, int count) {
+		buffer.asIntBuffer().get(values, 0, count);
+		buffer.position(buffer.position() + 4 * count);
+	}
+
+	private static void getFloats(ByteBuffer buffer, float[] values, int count) {
+		buffer.asFloatBuffer().get(values, 0, count);
+		buffer.position(buffer.position() + 4 * count);
+	}
+
+	/**
+	 * @return the CRC-32 of the first <code>length</code> bytes of <code>buffer</code>, without moving its position
+	 */
+	private static long checksum(ByteBuffer buffer, int length) {
+		CRC32 crc = new CRC32();
+		if(buffer.hasArray()) crc.update(buffer.array(), buffer.arrayOffset(), length);
+		else {
+			ByteBuffer view = buffer.duplicate();
+			view.position(0);
+			byte[] chunk = new byte[64 * 1024];
+			for(int done = 0; done < length; done += chunk.length) {
+				int count = Math.min(chunk.length, length - done);
+				view.get(chunk, 0, count);
+				crc.update(chunk, 0, count);
+			}
+		}
+		return crc.getValue();
+	}
+
+}
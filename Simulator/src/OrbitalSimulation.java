@@ -1,14 +1,14 @@
 import java.awt.Color;
 import java.awt.Dimension;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
 
+import javax.management.JMException;
 import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
 
 import org.opensourcephysics.controls.AbstractSimulation;
 import org.opensourcephysics.controls.SimulationControl;
@@ -19,14 +19,14 @@ import org.opensourcephysics.frames.DisplayFrame;
 
 public class OrbitalSimulation extends AbstractSimulation {
 
-	final private static boolean DEBUG = false;
-	
 	final private static int[] FRAME_LOCATION = {0, 0};
 	final private static int[] FRAME_DIMENSIONS = {800, 500};
 	final private static double[] FRAME_PREFERRED_MINMAX = {-7E6, 7E6, -3.5E6, 3.5E6}; //scale at which the frame starts
-	final public static int COLLISION_TOLERANCE_PIXELS = 3; //how many pixels "deep" one planet must graze another to trigger a collision
+	final private static String AUTOSAVE_DIRECTORY = "autosave"; //inside the working directory
+	final private static int FRAME_RATE = 60; //frames per second to draw at while physics runs on its own thread
 	
 	final private static double SUN_MASS = 1.98892E30;
+	final private static double SCENARIO_SIZE = 0.85 * FRAME_PREFERRED_MINMAX[3]; //generated scenarios fit in the starting view
 	final private static double EARTH_MASS = 5.9742E24;
 	final private static double EARTH_ORBIT_RADIUS = 1.5E8;
 	final private static double EARTH_TANGENTIAL_VELOCITY = 1.08E5; //km/h
@@ -35,134 +35,249 @@ public class OrbitalSimulation extends AbstractSimulation {
 	
 	protected DisplayFrame frame;
 	protected DrawingPanel drawingPanel;
-	protected Stack<SimulationState> states;
-	protected List<Particle> particles;
+	protected UndoJournal states;
+	private long journalVersion = -1; //the engine's modification version when it last matched the newest state in states
+	protected OrbitalEngine engine;
 	protected ParticleMouseController pmc; //for detecting MouseEvents and triggering appropriate OrbitalSimulation responses
 	
 	protected JFileChooser fileChooser;
 	
-	protected double timeElapsed;
-	protected double timeInterval;
-	protected double gravConstant;
-	
-	protected boolean elasticCollisions;
+	protected BarnesHutSolver barnesHutSolver;
+	protected PhysicsRunner physicsRunner; //non-null when physics runs on its own thread, decoupled from drawing
+	private int drawnStructureVersion; //which set of particles the frame's drawables were last built from
+	protected Autosaver autosaver;
+	protected TrajectoryReplay replay; //non-null while a recording is being played back instead of the simulation
+	protected StepProfiler profiler;
+	protected ProfilerOverlay overlay; //non-null while the profiler's numbers are drawn over the simulation
+	protected ParticleLayer particleLayer = new ParticleLayer(); //draws every particle and trail
 	
 	@Override
 	protected void doStep() {
-		updateAccelerations();
-		moveParticles();
-		
-		timeElapsed += timeInterval;
-		
-		if(DEBUG) {
-			System.out.println("\nParticle positions:");
-			for(int i = 0; i < particles.size(); i++) {
-				System.out.println("Particle " + i + ": X = " + particles.get(i).getX() + ", Y =" + particles.get(i).getY());
+		if(replay != null) stepReplay();
+		else if(physicsRunner != null) drawLatestSnapshot();
+		else {
+			synchronized(engine) {
+				engine.step();
 			}
 		}
 	}
 	
-	private void updateAccelerations() {
-		Particle cur;
-		double sumXForces;
-		double sumYForces;
-		if(DEBUG) System.out.println("Sum of forces of each particle: ");
-		for(int i = 0; i < particles.size(); i++) {
-			cur = particles.get(i);
-			sumXForces = sumYForces = 0;
-			for(int j = 0; j < particles.size(); j++) {
-				if(j==i) continue;
-				sumXForces += forceOfGravityX(cur.getMass(), cur.getX(), cur.getY(), particles.get(j).getMass(), particles.get(j).getX(), particles.get(j).getY());
-				sumYForces += forceOfGravityY(cur.getMass(), cur.getX(), cur.getY(), particles.get(j).getMass(), particles.get(j).getX(), particles.get(j).getY());
+	@Override
+	public void startRunning() {
+		autosaver.setInterval(control.getInt("Autosave Every N Steps"));
+		autosaver.setKeep(control.getInt("Autosaves Kept"));
+		profiler.setDriftInterval(control.getInt("Measure Drift Every N Steps"));
+		if(replay != null) { //play back one frame per repaint; "Replay Speed" sets how many frames that skips
+			setStepsPerDisplay(1);
+			setDelayTime(1000 / FRAME_RATE);
+			return;
+		}
+		applyStepsPerFrame();
+		applyTrailSettings();
+		if(physicsRunner != null) physicsRunner.start();
+	}
+	
+	@Override
+	public void stopRunning() {
+		if(physicsRunner != null && replay == null) {
+			physicsRunner.stop();
+			synchronized(engine) {
+				physicsRunner.publish();
 			}
-			if(DEBUG) System.out.println("Particle " + i + ": X = " + sumXForces + ", Y = " + sumYForces);
-			cur.setXAccel(sumXForces / cur.getMass());
-			cur.setYAccel(sumYForces / cur.getMass());
+			drawLatestSnapshot();
+		}
+	}
+	
+	private void stepReplay() {
+		try {
+			if(replay.advance(control.getInt("Replay Speed"))) replay.show(frame);
+		}
+		catch(IOException e) {
+			control.println("Error: could not read " + replay.getReader().getFile() + ": " + e.getMessage());
+			closeReplay();
+		}
+	}
+	
+	/**
+	 * Opens a trajectory file chosen by the user and shows it in place of the simulation, or goes back
+	 * to the simulation if a replay is already open. While running, the replay moves "Replay Speed"
+	 * recorded frames per repaint (negative to play backwards).
+	 */
+	public void toggleReplay() {
+		if(replay != null) {
+			closeReplay();
+			return;
+		}
+		if(fileChooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION) return;
+		File file = fileChooser.getSelectedFile();
+		try {
+			TrajectoryReader reader = new TrajectoryReader(file);
+			replay = new TrajectoryReplay(reader);
+			replay.show(frame);
+			frame.repaint();
+			control.println("Replaying " + reader.getFrameCount() + " frames of " + file + ", t = " + reader.getStartTime() + " to " + reader.getEndTime() + ".");
+		}
+		catch(IOException e) {
+			control.println("Error: could not open " + file + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Jumps the open replay to the frame recorded at the "Replay Time" control's simulated time.
+	 */
+	public void seekReplay() {
+		if(replay == null) {
+			control.println("Open a replay first.");
+			return;
+		}
+		try {
+			replay.seek(control.getDouble("Replay Time"));
+			replay.show(frame);
+			frame.repaint();
+		}
+		catch(IOException e) {
+			control.println("Error: could not read " + replay.getReader().getFile() + ": " + e.getMessage());
 		}
 	}
 	
-	private void moveParticles() {
-		for(int i = 0; i < particles.size(); i++) {
-			particles.get(i).moveStep(timeInterval);
+	private void closeReplay() {
+		try {
+			replay.close();
+		}
+		catch(IOException e) {
+			e.printStackTrace();
 		}
+		replay = null;
+		frame.setMessage(null);
+		synchronized(engine) {
+			showParticles(engine.getParticles());
+			drawnStructureVersion = engine.getStructureVersion();
+		}
+		frame.repaint();
+	}
+	
+	/**
+	 * Moves the drawn particles to the positions in the physics thread's newest snapshot.
+	 */
+	private void drawLatestSnapshot() {
+		RenderSnapshot snapshot = physicsRunner.takeSnapshot();
+		if(snapshot == null) return; //no steps since the last frame
+		long start = System.nanoTime();
 		
-		for(int i = 0; i < particles.size(); i++) {
-			for(int j = i+1; j < particles.size(); j++) {
-				if(haveCollided(particles.get(i), particles.get(j))) {
-					computeCollision(particles.get(i), particles.get(j));
-				}
+		if(snapshot.getStructureVersion() != drawnStructureVersion) { //particles were added, merged or replaced
+			List<Particle> particles = new ArrayList<Particle>(snapshot.getCount());
+			for(int i = 0; i < snapshot.getCount(); i++) {
+				particles.add(snapshot.getParticle(i));
 			}
+			showParticles(particles);
+			drawnStructureVersion = snapshot.getStructureVersion();
 		}
-	}
-
-	private void computeCollision(Particle p1, Particle p2) {
-		p1.setLatestCollision(p2);
-		p2.setLatestCollision(p1);
 		
-		if(elasticCollisions) {
-			//2 * (m1v1 + m2v2 / m1 + m2) - v0
-			double m1, vx1, vy1, m2, vx2, vy2;
-			m1 = p1.getMass();
-			vx1 = p1.getXVel();
-			vy1 = p1.getYVel();
-			m2 = p2.getMass();
-			vx2 = p2.getXVel();
-			vy2 = p2.getYVel();
-			
-			if(DEBUG) {
-				System.out.println("m1: " + m1);
-				System.out.println("vx1: " + vx1);
-				System.out.println("vy1: " + vy1);
-				System.out.println("m2: " + m2);
-				System.out.println("vx2: " + vx2);
-				System.out.println("vy2: " + vy2);
+		for(int i = 0; i < snapshot.getCount(); i++) {
+			snapshot.getParticle(i).showPosition(snapshot.getX(i), snapshot.getY(i));
+		}
+		physicsRunner.releaseSnapshot();
+		profiler.record(StepProfiler.SNAPSHOTS, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Makes the frame draw <code>particles</code> and their trails in place of everything it drew
+	 * before, with the performance overlay on top if it's showing.
+	 */
+	private void showParticles(List<Particle> particles) {
+		particleLayer.setParticles(particles);
+		for(Drawable d : frame.getDrawables()) {
+			frame.removeDrawable(d);
+		}
+		frame.addDrawable(particleLayer);
+		if(overlay != null) frame.addDrawable(overlay);
+	}
+	
+	/**
+	 * Switches between drawing every trail in full each frame and keeping them in an image that only has their
+	 * newest segments added, fading by "Cached Trail Fade" each frame.
+	 */
+	public void toggleCachedTrails() {
+		particleLayer.setTrailFade(control.getDouble("Cached Trail Fade"));
+		particleLayer.setCachingTrails(!particleLayer.isCachingTrails());
+		control.println("Trails are now " + (particleLayer.isCachingTrails() ? "cached and extended each frame." : "drawn in full each frame."));
+		frame.repaint();
+	}
+	
+	/**
+	 * Shows or hides the step profiler's timings, rates and drift over the simulation. The same
+	 * numbers are available over JMX (see <code>StepProfiler.OBJECT_NAME</code>) whether or not they're shown.
+	 */
+	public void toggleProfilerOverlay() {
+		if(overlay == null) {
+			overlay = new ProfilerOverlay(profiler);
+			frame.addDrawable(overlay);
+		}
+		else {
+			frame.removeDrawable(overlay);
+			overlay = null;
+		}
+		frame.repaint();
+	}
+	
+	/**
+	 * Switches between stepping physics between frames on the animation thread and stepping it
+	 * continuously on a thread of its own.
+	 */
+	public void togglePhysicsThread() {
+		boolean wasRunning = physicsRunner != null && physicsRunner.isRunning();
+		if(physicsRunner == null) {
+			physicsRunner = new PhysicsRunner(engine);
+			drawnStructureVersion = engine.getStructureVersion();
+			engine.setUpdatingViews(false);
+			if(isRunning()) physicsRunner.start();
+			control.println("Physics now runs on its own thread; the display is drawn at " + FRAME_RATE + " frames per second.");
+		}
+		else {
+			physicsRunner.stop();
+			synchronized(engine) {
+				physicsRunner.publish();
 			}
-			
-			p1.setXVel(2 * (m1*vx1 + m2*vx2) / (m1 + m2) - vx1);
-			p2.setXVel(2 * (m1*vx1 + m2*vx2) / (m1 + m2) - vx2);
-			
-			if(DEBUG) {
-				System.out.println("new vx1: " + p1.getXVel());
-				System.out.println("new vx2: " + p2.getXVel());
-				System.out.println("Collision happened!");
+			drawLatestSnapshot();
+			physicsRunner = null;
+			engine.setUpdatingViews(true);
+			control.println("Physics now steps between frames" + (wasRunning ? "." : ""));
+		}
+		applyStepsPerFrame();
+	}
+	
+	/**
+	 * Reads the "Trail Length" and "Trail Resolution" controls into every current trail and those created later.
+	 */
+	private void applyTrailSettings() {
+		int capacity = control.getInt("Trail Resolution");
+		int length = control.getInt("Trail Length");
+		SerializableTrail.setDefaults(capacity, length);
+		particleLayer.setTrailFade(control.getDouble("Cached Trail Fade"));
+		synchronized(engine) {
+			for(Particle p : engine.getParticles()) {
+				if(!p.hasTrail()) continue; //will be created with the new defaults
+				p.getTrail().setCapacity(capacity);
+				p.getTrail().setLength(length);
 			}
-			
-			p1.setYVel(2 * (m1*vy1 + m2*vy2) / (m1 + m2) - vy1);
-			p2.setYVel(2 * (m1*vy1 + m2*vy2) / (m1 + m2) - vy2);
-		}
-		else { //inelastic collisions
-			Particle merged = Particle.createParticleFromCollision(p1, p2);
-			
-			frame.removeDrawable(p1);
-			frame.removeDrawable(p1.getTrail());
-			frame.removeDrawable(p2);
-			frame.removeDrawable(p2.getTrail());
-			frame.addDrawable(merged);
-			frame.addDrawable(merged.getTrail());
-			
-			particles.remove(p1);
-			particles.remove(p2);
-			particles.add(merged);
-		}
-	}
-	
-	private boolean haveCollided(Particle p1, Particle p2) {
-		int p1CenterPixelX = drawingPanel.xToPix(p1.getX());
-		int p1CenterPixelY = drawingPanel.yToPix(p1.getY());
-		int p2CenterPixelX = drawingPanel.xToPix(p2.getX());
-		int p2CenterPixelY = drawingPanel.yToPix(p2.getY());
-		int pixelDistance = (int)Math.round(distance(p1CenterPixelX, p1CenterPixelY, p2CenterPixelX, p2CenterPixelY));
-		
-		if(pixelDistance + COLLISION_TOLERANCE_PIXELS > p1.getPixRadius() + p2.getPixRadius())
-			return false;
-
-		else if(p1.getLatestCollision() == null || p2.getLatestCollision() == null) //their collision hasn't already been computed
-			return true;
-		
-		else if(p1.getLatestCollision().equals(p2) || p2.getLatestCollision().equals(p1))
-			return false; //don't count this time as a collision because it's already been computed
-		
-		return true;
+		}
+	}
+	
+	/**
+	 * Reads the "Steps Per Frame" control. When physics runs on its own thread, this sets its target
+	 * rate (0 for as fast as possible); otherwise it sets how many steps are taken between repaints.
+	 */
+	private void applyStepsPerFrame() {
+		int stepsPerFrame = control.getInt("Steps Per Frame");
+		if(physicsRunner != null) {
+			physicsRunner.setTargetStepsPerSecond(stepsPerFrame * FRAME_RATE);
+			setStepsPerDisplay(1);
+			setDelayTime(1000 / FRAME_RATE);
+		}
+		else {
+			setStepsPerDisplay(Math.max(1, stepsPerFrame));
+			setDelayTime(10); //minimum possible delay between frame refreshes
+		}
 	}
 	
 	public void loadState() {
@@ -173,11 +288,12 @@ public class OrbitalSimulation extends AbstractSimulation {
 			if (returnValue == JFileChooser.APPROVE_OPTION) {
 				File file = fileChooser.getSelectedFile();
 				if(file.getName().endsWith(".orbital")) {
-					ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-					loaded = (SimulationState)in.readObject();
-					in.close();
-					states.push(loaded);
-					revertToState(loaded);
+					loaded = SimulationState.load(file);
+					synchronized(engine) {
+						states.push(loaded);
+						revertToState(loaded);
+						journalVersion = engine.getModificationVersion();
+					}
 				}
 				else control.println("Error: invalid file type (file must end in .orbital)");
 			}
@@ -192,66 +308,205 @@ public class OrbitalSimulation extends AbstractSimulation {
 		int returnValue = fileChooser.showSaveDialog(null);
 		if (returnValue == JFileChooser.APPROVE_OPTION) {
 			File file = this.fileChooser.getSelectedFile();
-			states.push(currentState());
-			states.peek().save(file);
+			SimulationState saved;
+			synchronized(engine) {
+				if(engine.getModificationVersion() != journalVersion) cacheCurrentState();
+				saved = states.peek();
+			}
+			//write it on the autosave thread so a large simulation doesn't freeze the window:
+			autosaver.saveInBackground(saved, file, new Autosaver.SaveListener() {
+				public void saved(final File file, final IOException failure) {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if(failure == null) control.println("Saved " + file + ".");
+							else control.println("Error: could not save " + file + ": " + failure.getMessage());
+						}
+					});
+				}
+			});
 		}
 	}
 	
-	public void stepBackState() {
-		if(states.size() >= 1) {
-			if(currentState().equals(states.peek()))
-				states.pop();
-			revertToState(states.pop());
+	/**
+	 * Loads the newest autosave checkpoint that isn't damaged.
+	 */
+	public void resumeAutosave() {
+		SimulationState resumed = Autosaver.loadNewest(autosaver.getDirectory());
+		if(resumed == null) {
+			control.println("No readable autosaves in " + autosaver.getDirectory() + ".");
+			return;
+		}
+		synchronized(engine) {
+			states.push(resumed);
+			revertToState(resumed);
+			journalVersion = engine.getModificationVersion();
+		}
+		control.println("Resumed from the autosave at t = " + resumed.getTimeElapsed() + ".");
+	}
+	
+	/**
+	 * Replaces the simulation with the scenario named in "Scenario" (one of <code>ScenarioGenerator.NAMES</code>), with
+	 * "Scenario Bodies" bodies laid out from "Scenario Seed" and sized to fit the starting view.
+	 */
+	public void generateScenario() {
+		String scenario = control.getString("Scenario");
+		if(!ScenarioGenerator.isScenario(scenario)) {
+			control.println("Error: unknown scenario " + scenario + " (must be one of " + Arrays.toString(ScenarioGenerator.NAMES) + ")");
+			return;
+		}
+		int bodies = Math.max(1, control.getInt("Scenario Bodies"));
+		long start = System.nanoTime();
+		synchronized(engine) {
+			revertToState(new SimulationState(new ArrayList<Particle>(), 0, engine.getTimeInterval(), engine.getGravConstant(), engine.isElasticCollisions()));
+			new ScenarioGenerator(control.getInt("Scenario Seed")).generate(scenario, engine, bodies, SCENARIO_SIZE, SUN_MASS);
+			showParticles(engine.getParticles());
+			drawnStructureVersion = engine.getStructureVersion();
 			cacheCurrentState();
 		}
+		frame.repaint();
+		control.println("Generated " + bodies + " bodies in " + (System.nanoTime() - start) / 1000000 + " ms.");
+	}
+	
+	public void stepBackState() {
+		synchronized(engine) {
+			if(!states.isEmpty()) {
+				if(engine.getModificationVersion() == journalVersion) //nothing has happened since the newest state was taken
+					states.pop();
+				revertToState(states.pop());
+				cacheCurrentState();
+			}
+		}
 	}
 	
 	public void clearSimulation() {
-		SimulationState cleared = new SimulationState(new ArrayList<Particle>(), timeElapsed, timeInterval, gravConstant, elasticCollisions);
-		if(!currentState().equals(cleared)) {
-			revertToState(cleared);
-			cacheCurrentState();
+		synchronized(engine) {
+			if(!engine.getParticles().isEmpty()) { //clearing only removes particles, so it would change nothing otherwise
+				SimulationState cleared = new SimulationState(new ArrayList<Particle>(), engine.getTimeElapsed(), engine.getTimeInterval(), engine.getGravConstant(), engine.isElasticCollisions());
+				revertToState(cleared);
+				cacheCurrentState();
+			}
 		}
 	}
 	
 	public void toggleCollisionType() {
-		elasticCollisions = !elasticCollisions;
-		control.println("Collision type changed to " + (elasticCollisions ? "elastic" : "inelastic") + ".");
+		synchronized(engine) {
+			engine.setElasticCollisions(!engine.isElasticCollisions());
+		}
+		control.println("Collision type changed to " + (engine.isElasticCollisions() ? "elastic" : "inelastic") + ".");
 	}
 	
-	public void cacheCurrentState() {
-		states.push(currentState());
+	public void toggleForceSolver() {
+		barnesHutSolver.setTheta(control.getDouble("Barnes-Hut Opening Angle"));
+		synchronized(engine) {
+			engine.setSolver((engine.getSolver() == barnesHutSolver) ? new DirectSumSolver() : barnesHutSolver);
+		}
+		control.println("Gravity solver changed to " + engine.getSolver().getName() + ".");
 	}
 	
-	private void revertToState(SimulationState state) {
-		particles = state.getParticles();
-		timeElapsed = state.getTimeElapsed();
-		timeInterval = state.getTimeInterval();
-		gravConstant = state.getGravConstant();
-		elasticCollisions = state.isElasticCollisions();
-		
-		for(Drawable d : frame.getDrawables()) {
-			frame.removeDrawable(d);
+	public void toggleParallelStepping() {
+		PhysicsKernel kernel = engine.getKernel();
+		synchronized(engine) {
+			if(kernel.getParallelStepper() == null) {
+				kernel.setParallelStepper(new ParallelStepper(control.getInt("Parallelism")));
+				control.println("Parallel stepping enabled with " + kernel.getParallelStepper().getParallelism() + " threads.");
+			}
+			else {
+				kernel.getParallelStepper().shutdown();
+				kernel.setParallelStepper(null);
+				control.println("Parallel stepping disabled.");
+			}
 		}
-		
-		for(Particle p : particles) {
-			frame.addDrawable(p);
-			frame.addDrawable(p.getTrail());
+	}
+	
+	public void cycleIntegrator() {
+		synchronized(engine) {
+			engine.setIntegrator(Integrator.next(engine.getIntegrator()));
+			configureIntegrator();
+		}
+		control.println("Integrator changed to " + engine.getIntegrator().getName() + ".");
+	}
+	
+	/**
+	 * Prints how far the Barnes-Hut accelerations of the current particles are from the exact direct sum.
+	 */
+	public void reportForceError() {
+		barnesHutSolver.setTheta(control.getDouble("Barnes-Hut Opening Angle"));
+		double[] error;
+		synchronized(engine) {
+			error = barnesHutSolver.measureError(engine.getStore(), engine.getGravConstant());
+		}
+		control.println("Barnes-Hut error vs. direct sum (theta = " + barnesHutSolver.getTheta() + ", " + engine.getParticles().size() + " particles): " 
+				+ "RMS " + (100 * error[0]) + "%, max " + (100 * error[1]) + "%");
+	}
+	
+	/**
+	 * Starts recording every particle's position and velocity to a trajectory file chosen by the user, or stops the current recording.
+	 */
+	public void toggleRecording() {
+		TrajectoryRecorder recorder = engine.getRecorder();
+		if(recorder != null) {
+			synchronized(engine) {
+				engine.setRecorder(null);
+			}
+			try {
+				recorder.close();
+				control.println("Recorded " + recorder.getFrames() + " frames to " + recorder.getFile() + ".");
+			}
+			catch(IOException e) {
+				control.println("Error: recording to " + recorder.getFile() + " failed: " + e.getMessage());
+			}
+			return;
 		}
 		
-		frame.repaint();
+		if(fileChooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) return;
+		File file = fileChooser.getSelectedFile();
+		try {
+			recorder = new TrajectoryRecorder(file, control.getInt("Record Every N Steps"));
+			synchronized(engine) {
+				engine.setRecorder(recorder);
+			}
+			control.println("Recording every " + recorder.getInterval() + " steps to " + file + ".");
+		}
+		catch(IOException e) {
+			control.println("Error: could not record to " + file + ": " + e.getMessage());
+		}
 	}
 	
-	private SimulationState currentState() {
-		return new SimulationState(particles, timeElapsed, timeInterval, gravConstant, elasticCollisions);
+	public void cacheCurrentState() {
+		synchronized(engine) {
+			states.push(currentState());
+			journalVersion = engine.getModificationVersion();
+		}
+	}
+	
+	private void configureIntegrator() {
+		if(engine.getIntegrator() instanceof BlockTimestepIntegrator) {
+			BlockTimestepIntegrator blocks = (BlockTimestepIntegrator)engine.getIntegrator();
+			blocks.setAccuracy(control.getDouble("Block Timestep Accuracy"));
+			blocks.setMaxLevel(control.getInt("Block Timestep Max Level"));
+		}
+	}
+	
+	public void addParticle(Particle p) {
+		synchronized(engine) {
+			engine.addParticle(p);
+			if(physicsRunner == null) { //otherwise the next snapshot shows it
+				showParticles(engine.getParticles());
+				drawnStructureVersion = engine.getStructureVersion();
+			}
+		}
 	}
 	
-	private double forceOfGravityX(double m1, double x1, double y1, double m2, double x2, double y2) {
-		return gravConstant * m1 * m2 * (x2 - x1) / Math.pow(distance(x1, y1, x2, y2), 3);
+	private void revertToState(SimulationState state) {
+		engine.loadState(state);
+		particleLayer.invalidateTrails();
+		drawnStructureVersion = engine.getStructureVersion();
+		showParticles(engine.getParticles());
+		frame.repaint();
 	}
 	
-	private double forceOfGravityY(double m1, double x1, double y1, double m2, double x2, double y2) {
-		return gravConstant * m1 * m2 * (y2 - y1) / Math.pow(distance(x1, y1, x2, y2), 3);
+	private SimulationState currentState() {
+		return engine.currentState();
 	}
 	
 	public static double distance(double x1, double y1, double x2, double y2) {
@@ -274,21 +529,88 @@ public class OrbitalSimulation extends AbstractSimulation {
 		control.setValue("Mass", EARTH_MASS);
 		control.setValue("Time Interval", .01);
 		control.setValue("Gravitational Constant", 6.67384E-11);
+		control.setValue("Integrator", "Euler"); //one of Integrator.NAMES
+		control.setValue("Block Timestep Accuracy", BlockTimestepIntegrator.DEFAULT_ACCURACY); //smaller is more accurate
+		control.setValue("Block Timestep Max Level", BlockTimestepIntegrator.DEFAULT_MAX_LEVEL); //steps may be divided by up to 2^this
+		control.setValue("Barnes-Hut Opening Angle", BarnesHutSolver.DEFAULT_THETA);
+		control.setValue("Parallelism", Runtime.getRuntime().availableProcessors());
+		control.setValue("Steps Per Frame", 1); //with physics on its own thread, 0 runs it as fast as possible
+		control.setValue("Trail Length", SerializableTrail.DEFAULT_LENGTH); //how many steps back trails reach (0 for all the way)
+		control.setValue("Trail Resolution", SerializableTrail.DEFAULT_CAPACITY); //most points kept per trail; older points are thinned out
+		control.setValue("Cached Trail Fade", 0); //fraction of their opacity cached trails lose each frame; 0 to keep them
+		control.setValue("Undo Memory (MB)", UndoJournal.DEFAULT_BUDGET_BYTES / (1024 * 1024)); //the oldest undo states are forgotten past this
+		control.setValue("Record Every N Steps", 10);
+		control.setValue("Autosave Every N Steps", 10000); //0 to turn autosaving off
+		control.setValue("Autosaves Kept", 5);
+		control.setValue("Replay Speed", 1); //recorded frames per repaint; negative plays backwards
+		control.setValue("Replay Time", 0); //simulated time to jump to with "Seek Replay"
+		control.setValue("Scenario", "disk"); //one of ScenarioGenerator.NAMES, built by "Generate Scenario"
+		control.setValue("Scenario Bodies", 5000);
+		control.setValue("Scenario Seed", 1);
+		control.setValue("Measure Drift Every N Steps", StepProfiler.DEFAULT_DRIFT_INTERVAL); //energy and momentum, for the profiler; 0 to turn off
 	}
 	
 	@Override
 	public void initialize() {
+		boolean physicsThread = physicsRunner != null;
+		if(physicsThread) physicsRunner.stop(); //from before a reset; it is bound to the old engine
+		if(replay != null) { //a reset goes back to the simulation
+			try {
+				replay.close();
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+			}
+			replay = null;
+		}
+		if(engine != null && engine.getKernel().getParallelStepper() != null) engine.getKernel().getParallelStepper().shutdown(); //its pool would otherwise outlive the engine
+		if(engine != null && engine.getRecorder() != null) { //a recording from before a reset ends with the engine it recorded
+			TrajectoryRecorder recorder = engine.getRecorder();
+			engine.setRecorder(null);
+			try {
+				recorder.close();
+				control.println("Recorded " + recorder.getFrames() + " frames to " + recorder.getFile() + ".");
+			}
+			catch(IOException e) {
+				control.println("Error: recording to " + recorder.getFile() + " failed: " + e.getMessage());
+			}
+		}
+		
 		frame = new DisplayFrame("X", "Y", "Orbital Simulation");
 		frame.addButton("loadState", "Load", 
 				"Load a simulation from a .orbital file", this);
 		frame.addButton("saveState", "Save", 
 				"Save the current simulation to a file", this);
+		frame.addButton("resumeAutosave", "Resume Autosave", 
+				"Load the newest autosaved checkpoint", this);
+		frame.addButton("generateScenario", "Generate Scenario", 
+				"Replace the simulation with a generated disk, Plummer sphere, belt or pair of colliding clusters (see \"Scenario\")", this);
 		frame.addButton("stepBackState", "Undo", 
 				"Step back to the previous state of the simulation", this);
 		frame.addButton("clearSimulation", "Clear", 
 				"Clear all contents of the simulation", this);
 		frame.addButton("toggleCollisionType", "Toggle Elastic / Inelastic Collisions", 
 				"Change whether particles bounce off of each other or merge when they collide", this);
+		frame.addButton("cycleIntegrator", "Change Integrator", 
+				"Switch to the next integration method (Euler, Leapfrog, Velocity Verlet, RK4, Yoshida, Block Timestep)", this);
+		frame.addButton("toggleForceSolver", "Toggle Direct Sum / Barnes-Hut", 
+				"Change whether gravity is summed exactly or approximated with a Barnes-Hut quadtree", this);
+		frame.addButton("toggleParallelStepping", "Toggle Parallel Stepping", 
+				"Change whether each step is split across multiple threads (gravity is summed in a different order, so orbits slowly drift apart from a single-threaded run)", this);
+		frame.addButton("togglePhysicsThread", "Toggle Physics Thread", 
+				"Change whether physics runs continuously on its own thread or steps between frames", this);
+		frame.addButton("toggleRecording", "Start / Stop Recording", 
+				"Record every particle's position and velocity to a trajectory file as the simulation runs", this);
+		frame.addButton("toggleReplay", "Open / Close Replay", 
+				"Play back a recorded trajectory file instead of the simulation", this);
+		frame.addButton("seekReplay", "Seek Replay", 
+				"Jump the open replay to the time in \"Replay Time\"", this);
+		frame.addButton("reportForceError", "Barnes-Hut Error", 
+				"Compare the Barnes-Hut accelerations of the current particles against the exact direct sum", this);
+		frame.addButton("toggleCachedTrails", "Toggle Cached Trails", 
+				"Change whether trails are kept in an image and only extended each frame, which keeps frames fast however long the trails get", this);
+		frame.addButton("toggleProfilerOverlay", "Toggle Performance Overlay", 
+				"Show or hide how long each part of a step takes, the step and allocation rates, and energy and momentum drift", this);
 		frame.setLocation(FRAME_LOCATION[0], FRAME_LOCATION[1]);
 		frame.setSize(new Dimension(FRAME_DIMENSIONS[0], FRAME_DIMENSIONS[1]));
 		frame.setPreferredMinMax(FRAME_PREFERRED_MINMAX[0], FRAME_PREFERRED_MINMAX[1], FRAME_PREFERRED_MINMAX[2], FRAME_PREFERRED_MINMAX[3]);
@@ -303,6 +625,8 @@ public class OrbitalSimulation extends AbstractSimulation {
 		fileChooser = new JFileChooser(System.getProperty("user.dir"));
 		
 		this.setDelayTime(10); //minimum possible delay between frame refreshes
+		this.setStepsPerDisplay(Math.max(1, control.getInt("Steps Per Frame")));
+		SerializableTrail.setDefaults(control.getInt("Trail Resolution"), control.getInt("Trail Length"));
 		
 		Particle planet = new Particle(control.getString("Name"), control.getDouble("X"), control.getDouble("Y"),
 				control.getDouble("X Velocity"), control.getDouble("Y Velocity"), control.getDouble("Mass"), control.getInt("Radius"), Color.CYAN);
@@ -312,22 +636,45 @@ public class OrbitalSimulation extends AbstractSimulation {
 		double radius = distance(star.getX(), star.getY(), planet.getX(), planet.getY());
 		frame.setPreferredMinMax(1.1 * (star.getX() - radius), 1.1 * (star.getX() + radius), 1.1 * (star.getY() - radius), 1.1 * (star.getY() + radius));
 		
-		particles = new ArrayList<Particle>();
-		particles.add(planet);
-		particles.add(star);
-		
-		for(Particle p : particles) {
-			frame.addDrawable(p);
-			frame.addDrawable(p.getTrail());
+		engine = new OrbitalEngine(control.getDouble("Time Interval"), control.getDouble("Gravitational Constant"));
+		engine.addParticle(planet);
+		engine.addParticle(star);
+		engine.setIntegrator(Integrator.forName(control.getString("Integrator")));
+		configureIntegrator();
+		if(physicsThread) { //physics stays on its own thread, now stepping the new engine
+			physicsRunner = new PhysicsRunner(engine);
+			engine.setUpdatingViews(false);
+		}
+		if(autosaver != null) autosaver.shutdown(); //from before a reset
+		autosaver = new Autosaver(new File(System.getProperty("user.dir"), AUTOSAVE_DIRECTORY), control.getInt("Autosave Every N Steps"), control.getInt("Autosaves Kept"));
+		engine.setAutosaver(autosaver);
+		profiler = new StepProfiler(control.getInt("Measure Drift Every N Steps"));
+		engine.setProfiler(profiler);
+		particleLayer.setProfiler(profiler);
+		try {
+			profiler.registerMBean(); //replaces the profiler from before a reset
 		}
+		catch(JMException e) {
+			control.println("Warning: the step profiler could not be published over JMX: " + e.getMessage());
+		}
+		engine.setMergeListener(new OrbitalEngine.MergeListener() {
+			public void particlesMerged(List<Particle[]> clusters, List<Particle> merged) {
+				if(physicsRunner != null) return; //drawables are rebuilt from the next snapshot instead
+				
+				//one rebuild for every merge in the step, rather than removing each merged particle from the frame's list:
+				showParticles(engine.getParticles());
+				drawnStructureVersion = engine.getStructureVersion();
+			}
+		});
+		barnesHutSolver = new BarnesHutSolver(control.getDouble("Barnes-Hut Opening Angle"));
 		
-		timeElapsed = 0;
-		timeInterval = control.getDouble("Time Interval");
-		gravConstant = control.getDouble("Gravitational Constant");
-		elasticCollisions = false;
+		overlay = null; //the frame's drawables are all replaced after a reset
+		particleLayer.invalidateTrails();
+		showParticles(engine.getParticles());
+		drawnStructureVersion = engine.getStructureVersion();
 		
-		states = new Stack<SimulationState>();
-		states.add(currentState());
+		states = new UndoJournal((long)(control.getDouble("Undo Memory (MB)") * 1024 * 1024));
+		cacheCurrentState();
 	}
 
 	public static void main(String[] args) {
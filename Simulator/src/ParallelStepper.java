@@ -0,0 +1,103 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ParallelStepper
+ * Splits force evaluation, velocity kicks and position drifts across the threads of a <code>ForkJoinPool</code>.
+ * <p>
+ * Particles are always divided into the same fixed-size blocks no matter how many threads
+ * there are, and every particle's acceleration is summed by a single task in the solver's
+ * order for a range of particles. No values are combined across tasks, so the results are bit-for-bit
+ * identical for any parallelism, and a saved run replays the same way on any machine. They are not
+ * identical to stepping without a <code>ParallelStepper</code>, though: the solvers sum all
+ * particles at once in a different order (<code>DirectSumSolver</code> uses each pair for both of
+ * its particles), so the two differ in the last bits and long runs gradually diverge.
+ * @author Russell Kaplan
+ *
+ */
+public class ParallelStepper {
+
+	final public static int BLOCK_SIZE = 128; //particles per task
+
+	private ForkJoinPool pool;
+
+	public ParallelStepper(int parallelism) {
+		pool = new ForkJoinPool(Math.max(1, parallelism));
+	}
+
+	public void computeAccelerations(final ForceSolver solver, final ParticleStore store, final double gravConstant) {
+		solver.prepare(store, gravConstant);
+		forEachBlock(store.size, new BlockTask() {
+			public void run(int from, int to) {
+				solver.computeAccelerations(store, gravConstant, from, to);
+			}
+		});
+	}
+
+	public void kick(final ParticleStore store, final double dt) {
+		forEachBlock(store.size, new BlockTask() {
+			public void run(int from, int to) {
+				store.kick(dt, from, to);
+			}
+		});
+	}
+
+	public void drift(final ParticleStore store, final double dt) {
+		forEachBlock(store.size, new BlockTask() {
+			public void run(int from, int to) {
+				store.drift(dt, from, to);
+			}
+		});
+	}
+
+	/**
+	 * Runs <code>task</code> over [0, n) in blocks of <code>BLOCK_SIZE</code>, waiting for every block to finish.
+	 */
+	public void forEachBlock(int n, BlockTask task) {
+		int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		if(blocks == 0) return;
+		if(blocks == 1) task.run(0, n); //not worth handing to the pool
+		else pool.invoke(new BlockAction(task, n, 0, blocks));
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public interface BlockTask {
+		public void run(int from, int to);
+	}
+
+	private static class BlockAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private BlockTask task;
+		private int n;
+		private int firstBlock;
+		private int lastBlock; //exclusive
+
+		public BlockAction(BlockTask task, int n, int firstBlock, int lastBlock) {
+			this.task = task;
+			this.n = n;
+			this.firstBlock = firstBlock;
+			this.lastBlock = lastBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if(lastBlock - firstBlock == 1) {
+				task.run(firstBlock * BLOCK_SIZE, Math.min(n, lastBlock * BLOCK_SIZE));
+				return;
+			}
+			int middle = (firstBlock + lastBlock) >>> 1;
+			invokeAll(new BlockAction(task, n, firstBlock, middle), new BlockAction(task, n, middle, lastBlock));
+		}
+
+	}
+
+}
@@ -1,15 +1,16 @@
 import java.awt.Color;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opensourcephysics.display.Circle;
-import org.opensourcephysics.display.Trail;
 /**
  * Particle 
+ * While a <code>Particle</code> is part of a running simulation it is bound to a <code>ParticleStore</code>,
+ * which holds its position, velocity, acceleration and mass. The getters and setters then read and write
+ * the store, and the fields below only hold the position last drawn on screen.
  * @author Russell Kaplan
  *
  */
@@ -17,13 +18,19 @@ public class Particle extends Circle implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final AtomicLong nextId = new AtomicLong(1);
+
 	//for data in arrays, [0] stores the value for x, and [1] for y:
 	private String name;
 	private double[] vel;
 	private double[] accel;
 	private double mass;
-	private SerializableTrail trail;
+	private double radius; //physical radius, in world units (0 in files saved before it existed)
+	private volatile SerializableTrail trail; //null until first asked for, for particles added in bulk
 	private Particle latestCollision; //for ensuring the same collision is not processed multiple times
+	private transient ParticleStore store; //null unless the particle is part of a running simulation
+	private transient int index;
+	private transient long id; //the same for a particle and all of its copies, and unique among particles created in this run
 
 	public Particle(String name, double x, double y, double xVel, double yVel, double mass, int pixRadius, Color color) {
 		super(x, y, pixRadius);
@@ -34,40 +41,115 @@ public class Particle extends Circle implements Serializable {
 		this.vel = new double[] {xVel, yVel};
 		this.accel = new double[] {0, 0};
 		this.mass = mass;
+		this.radius = pixRadius * OrbitalEngine.WORLD_UNITS_PER_PIXEL; //the same size as it's drawn at the default zoom
 
 		this.trail = new SerializableTrail();
 		this.trail.color = color;
 		this.trail.addPoint(x, y);
 
 		this.latestCollision = null; //hasn't collided with any particles yet
+		this.id = nextId.getAndIncrement();
+	}
+
+	/**
+	 * Creates a particle whose physical state has already been written into <code>store</code> at <code>index</code>,
+	 * and which is bound to it from the start. So that adding many at once stays cheap, its trail is only created
+	 * once something asks for it (usually the first repaint), starting from where the particle is then, and its
+	 * velocity and acceleration arrays only once it is unbound.
+	 */
+	Particle(String name, ParticleStore store, int index, int pixRadius, Color color) {
+		super(store.x[index], store.y[index], pixRadius);
+		this.name = name;
+		this.color = color;
+		this.pixRadius = pixRadius;
+
+		this.mass = store.mass[index];
+		this.radius = store.radius[index];
+
+		this.store = store;
+		this.index = index;
+		this.id = nextId.getAndIncrement();
 	}
 
-	public void moveStep(double timeInterval) {
+	private Particle(Particle original) {
+		super(original.getX(), original.getY(), original.pixRadius);
+		this.name = original.name;
+		this.color = original.color;
+
+		this.vel = new double[] {original.getXVel(), original.getYVel()};
+		this.accel = new double[] {original.getXAccel(), original.getYAccel()};
+		this.mass = original.getMass();
+		this.radius = original.radius;
 
-		//update velocities:
-		for(int i = 0; i < vel.length; i++) {
-			vel[i] = vel[i] + accel[i] * timeInterval; //update the velocity based on acceleration
+		SerializableTrail trail = original.trail;
+		this.trail = (trail != null) ? trail.copy() : null;
+		this.latestCollision = null; //only ever compared by identity, so a reference to the original's partner would never match
+		this.id = original.id;
+	}
+
+	/**
+	 * Moves this particle's physical state into <code>store</code>, which becomes the authoritative copy.
+	 * @return the particle's index in the store
+	 */
+	public int bind(ParticleStore store) {
+		if(this.store != null) unbind();
+		this.index = store.add(x, y, vel[0], vel[1], accel[0], accel[1], mass, radius);
+		this.store = store;
+		return index;
+	}
+
+	/**
+	 * Copies this particle's physical state back out of its store and detaches it.
+	 */
+	public void unbind() {
+		if(store == null) return;
+		copyFromStore();
+		store = null;
+	}
+
+	private void copyFromStore() {
+		if(vel == null) { //added in bulk, and never unbound before
+			vel = new double[2];
+			accel = new double[2];
 		}
+		x = store.x[index];
+		y = store.y[index];
+		vel[0] = store.vx[index];
+		vel[1] = store.vy[index];
+		accel[0] = store.ax[index];
+		accel[1] = store.ay[index];
+		mass = store.mass[index];
+	}
 
-		//update x and y positions:
-		x = x + vel[0] * timeInterval;
-		y = y + vel[1] * timeInterval;
+	/**
+	 * Copies the current position from the store into the drawn position and trail.
+	 */
+	public void updateView() {
+		showPosition(store.x[index], store.y[index]);
+	}
 
-		//update the trail:
-		trail.addPoint(x, y);
+	/**
+	 * Moves the drawn circle to (x, y) and extends the trail to it, without changing the physical state.
+	 */
+	public void showPosition(double x, double y) {
+		this.x = x;
+		this.y = y;
 
-		//		System.out.println("\tAfter stepping:");
-		//		System.out.println("\tCoords: " + x + ", " + y);
-		//		System.out.println("\tLatest collision is null? " + Boolean.toString(latestCollision == null));
+		//update the trail, if it has been created:
+		SerializableTrail trail = this.trail;
+		if(trail != null) trail.addPoint(x, y);
+	}
 
-		//check to see if the particle from the previous collision is outside of the collision detection range,
-		//indicating that future collisions with that particle should be handled normally and no longer ignored:
+	/**
+	 * Checks to see if the particle from the previous collision is outside of the collision detection range,
+	 * indicating that future collisions with that particle should be handled normally and no longer ignored.
+	 */
+	public void clearStaleCollision() {
 		if(latestCollision != null) {
-			if(!(Math.abs(x - latestCollision.getX()) < .5 && Math.abs(y - latestCollision.getY()) < .5))
+			if(!(Math.abs(getX() - latestCollision.getX()) < .5 && Math.abs(getY() - latestCollision.getY()) < .5))
 				latestCollision = null;
 			//TODO: handle when latestCollision is removed from the simulation (e.g. from inelastic collision)
 		}
-
 	}
 
 	/**
@@ -79,36 +161,62 @@ public class Particle extends Circle implements Serializable {
 	 * @return The <code>Particle</code> created from the collision
 	 */
 	public static Particle createParticleFromCollision(Particle p1, Particle p2) {
-		//use conservation of momentum to find new velocities:
-		double newXVel = (p1.getMass() * p1.getXVel() + p2.getMass() * p2.getXVel()) / (p1.getMass() + p2.getMass());
-		double newYVel = (p1.getMass() * p1.getYVel() + p2.getMass() * p2.getYVel()) / (p1.getMass() + p2.getMass());
-
-		//find the areas of each circle to determine the radius of the new Particle (whose area will be the sum of those two areas):
-		double p1area = Math.PI * Math.pow(p1.getPixRadius(), 2);
-		double p2area = Math.PI * Math.pow(p2.getPixRadius(), 2);
-		int newPixRadius = (int)Math.ceil(Math.sqrt((p1area + p2area) / Math.PI));
-
-		//determine new color by mixing the colors of the two particles:
-		Color newColor = new Color((p1.getColor().getRed() + p2.getColor().getRed()) / 2, 
-				(p1.getColor().getGreen() + p2.getColor().getGreen()) / 2, 
-				(p1.getColor().getGreen() + p2.getColor().getGreen()) / 2);
-		
-		double newX;
-		double newY;
-		if(p1.getPixRadius() > p2.getPixRadius()) {
-			newX = p1.getX();
-			newY = p1.getY();
-		}
-		else if(p2.getPixRadius() > p1.getPixRadius()) {
-			newX = p2.getX();
-			newY = p2.getY();
+		return createParticleFromCollision(new Particle[] {p1, p2});
+	}
+
+	/**
+	 * Creates a <code>Particle</code> that represents the outcome of a
+	 * perfectly inelastic collision between every particle in <code>cluster</code>
+	 * at once. Mass and momentum are conserved, and the area of the
+	 * new particle is the sum of their areas.
+	 * @param cluster at least two particles
+	 * @return The <code>Particle</code> created from the collision
+	 */
+	public static Particle createParticleFromCollision(Particle[] cluster) {
+		double totalMass = 0;
+		double xMomentum = 0;
+		double yMomentum = 0;
+		double pixRadiusSquares = 0;
+		double radiusSquares = 0;
+		int red = 0, green = 0, blue = 0;
+		int largestPixRadius = -1;
+		for(Particle p : cluster) {
+			totalMass += p.getMass();
+			xMomentum += p.getMass() * p.getXVel();
+			yMomentum += p.getMass() * p.getYVel();
+
+			//the area of the new circle is the sum of the areas of the old ones:
+			pixRadiusSquares += (double)p.getPixRadius() * p.getPixRadius();
+			radiusSquares += p.getRadius() * p.getRadius();
+
+			//determine new color by mixing the colors of the particles:
+			red += p.getColor().getRed();
+			green += p.getColor().getGreen();
+			blue += p.getColor().getBlue();
+
+			largestPixRadius = Math.max(largestPixRadius, p.getPixRadius());
 		}
-		else {
-			newX = (p1.getX() + p2.getX())/2;
-			newY = (p1.getY() + p2.getY())/2;
+		int newPixRadius = (int)Math.ceil(Math.sqrt(pixRadiusSquares));
+		double newRadius = Math.sqrt(radiusSquares);
+		Color newColor = new Color(red / cluster.length, green / cluster.length, blue / cluster.length);
+
+		//the new particle is where the largest one was, or midway between the largest if there's a tie:
+		double newX = 0;
+		double newY = 0;
+		int largest = 0;
+		for(Particle p : cluster) {
+			if(p.getPixRadius() == largestPixRadius) {
+				newX += p.getX();
+				newY += p.getY();
+				largest++;
+			}
 		}
+		newX /= largest;
+		newY /= largest;
 
-		return new Particle("Planet", newX, newY, newXVel, newYVel, p1.getMass() + p2.getMass(), newPixRadius, newColor);
+		Particle merged = new Particle("Planet", newX, newY, xMomentum / totalMass, yMomentum / totalMass, totalMass, newPixRadius, newColor);
+		merged.setRadius(newRadius);
+		return merged;
 	}
 
 	public String getName() {
@@ -120,60 +228,85 @@ public class Particle extends Circle implements Serializable {
 	}
 	
 	public double getX() {
-		return x;
+		return store == null ? x : store.x[index];
 	}
 	
 	
 	public void setX(double x) {
 		this.x = x;
+		if(store != null) {
+			store.x[index] = x;
+			store.accelerationsValid = false;
+		}
 	}
 
 	public double getXVel() {
-		return vel[0];
+		return store == null ? vel[0] : store.vx[index];
 	}
 
 	public void setXVel(double xVel) {
-		vel[0] = xVel;
+		if(store == null) vel[0] = xVel;
+		else store.vx[index] = xVel;
 	}
 
 	public double getY() {
-		return y;
+		return store == null ? y : store.y[index];
 	}
 	
 	public void setY(double y) {
 		this.y = y;
+		if(store != null) {
+			store.y[index] = y;
+			store.accelerationsValid = false;
+		}
 	}
 	
 	public double getYVel() {
-		return vel[1];
+		return store == null ? vel[1] : store.vy[index];
 	}
 
 	public void setYVel(double yVel) {
-		vel[1] = yVel;
+		if(store == null) vel[1] = yVel;
+		else store.vy[index] = yVel;
 	}
 
 	public double getXAccel() {
-		return accel[0];
+		return store == null ? accel[0] : store.ax[index];
 	}
 
 	public void setXAccel(double xAccel) {
-		accel[0] = xAccel;
+		if(store == null) accel[0] = xAccel;
+		else store.ax[index] = xAccel;
 	}
 
 	public double getYAccel() {
-		return accel[1];
+		return store == null ? accel[1] : store.ay[index];
 	}
 
 	public void setYAccel(double yAccel) {
-		accel[1] = yAccel;
+		if(store == null) accel[1] = yAccel;
+		else store.ay[index] = yAccel;
 	}
 
 	public double getMass() {
-		return mass;
+		return store == null ? mass : store.mass[index];
 	}
 
 	public void setMass(double mass) {
-		this.mass = mass;
+		if(store == null) this.mass = mass;
+		else {
+			store.mass[index] = mass;
+			store.accelerationsValid = false;
+		}
+	}
+
+	public double getRadius() {
+		return radius;
+	}
+
+	public void setRadius(double radius) {
+		this.radius = radius;
+		if(store != null) store.radius[index] = radius;
 	}
 
 	public Color getColor() {
@@ -182,13 +315,38 @@ public class Particle extends Circle implements Serializable {
 
 	public void setColor(Color color) {
 		this.color = color;
-		this.trail.color = color;
+		SerializableTrail trail = this.trail;
+		if(trail != null) trail.color = color;
 	}
 
-	public Trail getTrail() {
+	/**
+	 * @return this particle's trail, created starting from its drawn position if it doesn't have one yet
+	 */
+	public SerializableTrail getTrail() {
+		SerializableTrail trail = this.trail;
+		return (trail != null) ? trail : createTrail();
+	}
+
+	private synchronized SerializableTrail createTrail() {
+		if(trail == null) { //not created by another thread in the meantime
+			SerializableTrail created = new SerializableTrail();
+			created.color = color;
+			created.addPoint(x, y);
+			trail = created;
+		}
 		return trail;
 	}
 
+	/**
+	 * @return whether this particle's trail has been created, for callers that only need to read it if it exists
+	 */
+	public boolean hasTrail() {
+		return trail != null;
+	}
+
+	/**
+	 * @param trail the trail to draw, or null to create one when it's next asked for
+	 */
 	public void setTrail(SerializableTrail trail) {
 		this.trail = trail;
 	}
@@ -209,51 +367,119 @@ public class Particle extends Circle implements Serializable {
 		this.latestCollision = p;
 	}
 
-	public Particle deepCopy() {
-		Particle copy = null;
-
-		//serialize the Particle and unpack the bytecode to create a deep copy:
-		try {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			out.writeObject(this);
-			out.flush();
-			out.close();
-
-			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
-			copy = (Particle)in.readObject();
-			in.close();
-		}
-		catch(IOException e) {
-			e.printStackTrace();
-		}
-		catch(ClassNotFoundException cnfe) {
-			cnfe.printStackTrace();
-		}
+	public boolean isBound() {
+		return store != null;
+	}
+
+	/**
+	 * @return the x coordinate the particle was last drawn at, which lags its physical position while
+	 * <code>PhysicsRunner</code> steps ahead of the display
+	 */
+	public double getDrawnX() {
+		return x;
+	}
+
+	public double getDrawnY() {
+		return y;
+	}
+
+	public int getIndex() {
+		return index;
+	}
 
-		return copy;
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return an unbound copy of this particle's current state. The copy shares this particle's trail
+	 * until either of them adds to it, and has no latest collision.
+	 */
+	public Particle copy() {
+		return new Particle(this);
+	}
+
+	/**
+	 * @return whether <code>other</code> has exactly the same state as this particle, including its trail
+	 */
+	public boolean sameStateAs(Particle other) {
+		return getX() == other.getX() && getY() == other.getY()
+				&& getXVel() == other.getXVel() && getYVel() == other.getYVel()
+				&& getXAccel() == other.getXAccel() && getYAccel() == other.getYAccel()
+				&& getMass() == other.getMass() && radius == other.radius && pixRadius == other.pixRadius
+				&& name.equals(other.name) && color.equals(other.color) && sameTrailAs(other);
+	}
+
+	/**
+	 * A trail that hasn't been created yet counts as the one-point trail it will start as, so that
+	 * drawing a particle for the first time doesn't change its state.
+	 */
+	private boolean sameTrailAs(Particle other) {
+		SerializableTrail trail = this.trail, otherTrail = other.trail;
+		if(trail == null && otherTrail == null) return x == other.x && y == other.y;
+		if(trail == null) return otherTrail.isNewAt(x, y, color);
+		if(otherTrail == null) return trail.isNewAt(other.x, other.y, other.color);
+		return trail.sameAs(otherTrail);
+	}
+
+	public Particle deepCopy() {
+		return copy();
 	}
 
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
 
-		sb.append(x);
-		sb.append(y);
+		sb.append(getX());
+		sb.append(getY());
 		sb.append(pixRadius);
 		sb.append(name);
-		for(int i = 0; i < vel.length; i++) {
-			sb.append(vel[i]);
-			sb.append(accel[i]);
-		}
-		sb.append(mass);
-		sb.append(trail.hashCode());
+		sb.append(getXVel());
+		sb.append(getXAccel());
+		sb.append(getYVel());
+		sb.append(getYAccel());
+		sb.append(getMass());
+		sb.append(trailHash());
 		
 		return sb.toString();
 	}
 
+	/**
+	 * @return a 64-bit hash of everything <code>sameStateAs</code> compares
+	 */
+	public long fingerprint() {
+		long h = SimulationState.mix(Double.doubleToLongBits(getX()), Double.doubleToLongBits(getY()));
+		h = SimulationState.mix(h, Double.doubleToLongBits(getXVel()));
+		h = SimulationState.mix(h, Double.doubleToLongBits(getYVel()));
+		h = SimulationState.mix(h, Double.doubleToLongBits(getXAccel()));
+		h = SimulationState.mix(h, Double.doubleToLongBits(getYAccel()));
+		h = SimulationState.mix(h, Double.doubleToLongBits(getMass()));
+		h = SimulationState.mix(h, Double.doubleToLongBits(radius));
+		h = SimulationState.mix(h, pixRadius);
+		h = SimulationState.mix(h, name.hashCode());
+		h = SimulationState.mix(h, color.getRGB());
+		return SimulationState.mix(h, trailHash());
+	}
+
 	@Override
 	public int hashCode() {
-		return this.toString().hashCode();
+		long f = fingerprint();
+		return (int)(f ^ (f >>> 32));
+	}
+
+	private int trailHash() {
+		SerializableTrail trail = this.trail;
+		return (trail != null) ? trail.hashCode() : SerializableTrail.hash(1, 1, x, y, color); //as the trail it will start as
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		if(store != null) copyFromStore(); //the fields may be out of date while bound
+		out.defaultWriteObject();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if(radius == 0) radius = pixRadius * OrbitalEngine.WORLD_UNITS_PER_PIXEL;
+		id = nextId.getAndIncrement(); //ids aren't saved, since they're only unique within one run
 	}
 
 	//	//helpers:
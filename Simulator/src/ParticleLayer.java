@@ -0,0 +1,164 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opensourcephysics.display.Drawable;
+import org.opensourcephysics.display.DrawingPanel;
+
+/**
+ * ParticleLayer
+ * Draws a whole set of particles and their trails as one drawable, so the frame holds one drawable
+ * however many particles there are, and replacing the set is a single call rather than a removal
+ * and addition per particle.
+ * <p>
+ * Each repaint draws every trail first, then every particle on top, and skips any whose bounds
+ * are outside the panel. Particles are stamped from cached images (one per color and size) rather
+ * than filled as ovals one by one. Particles no more than <code>POINT_RADIUS</code> pixels in
+ * radius are drawn as small squares instead, and only the first of those to land on a pixel is
+ * drawn, so a dense cluster of thousands costs no more than the pixels it covers.
+ * <p>
+ * Trails are normally drawn in full each repaint. With <code>setCachingTrails(true)</code> they
+ * are kept in a <code>TrailRaster</code> instead, which only draws what's new.
+ * @author Russell Kaplan
+ *
+ */
+public class ParticleLayer implements Drawable {
+
+	final public static int POINT_RADIUS = 1;
+	final private static int MAX_SPRITE_RADIUS = 64; //larger particles are filled directly
+	final private static int MAX_SPRITES = 256;
+
+	private Particle[] particles = new Particle[0];
+	private TrailRaster trailRaster; //non-null while trails are cached in an image
+	private double trailFade;
+	private StepProfiler profiler; //times each repaint as PAINTING, or null
+
+	//scratch space, reused from one repaint to the next:
+	private int[] pixX = new int[0];
+	private int[] pixY = new int[0];
+	private long[] covered = new long[0]; //one bit per pixel of the panel, set once a point has been drawn there
+	private Map<Long, BufferedImage> sprites = new HashMap<Long, BufferedImage>();
+
+	/**
+	 * Replaces the particles drawn. The layer keeps its own array of them, so the collection may change afterwards.
+	 */
+	public synchronized void setParticles(Collection<Particle> particles) {
+		this.particles = particles.toArray(new Particle[particles.size()]);
+		if(trailRaster != null) trailRaster.setParticles(this.particles);
+	}
+
+	public synchronized boolean isCachingTrails() {
+		return trailRaster != null;
+	}
+
+	/**
+	 * @param cachingTrails whether to keep the trails drawn in an image and only draw their newest segments each repaint
+	 */
+	public synchronized void setCachingTrails(boolean cachingTrails) {
+		if(cachingTrails == (trailRaster != null)) return;
+		if(cachingTrails) {
+			trailRaster = new TrailRaster();
+			trailRaster.setFade(trailFade);
+			trailRaster.setParticles(particles);
+		}
+		else trailRaster = null;
+	}
+
+	/**
+	 * Sets how quickly cached trails fade; see <code>TrailRaster.setFade</code>. Trails drawn in full don't fade.
+	 */
+	public synchronized void setTrailFade(double fade) {
+		trailFade = fade;
+		if(trailRaster != null) trailRaster.setFade(fade);
+	}
+
+	/**
+	 * @param profiler records how long each repaint takes, or null for none
+	 */
+	public synchronized void setProfiler(StepProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Makes cached trails be drawn again from their points, as after the particles are replaced by an earlier or loaded state.
+	 */
+	public synchronized void invalidateTrails() {
+		if(trailRaster != null) trailRaster.invalidate();
+	}
+
+	@Override
+	public synchronized void draw(DrawingPanel panel, Graphics g) {
+		int width = panel.getWidth();
+		int height = panel.getHeight();
+		if(width <= 0 || height <= 0) return;
+		long start = System.nanoTime();
+		if(pixX.length < particles.length) {
+			pixX = new int[particles.length];
+			pixY = new int[particles.length];
+		}
+
+		if(trailRaster != null) trailRaster.draw(panel, g);
+		else {
+			double xLow = Math.min(panel.getXMin(), panel.getXMax()), xHigh = Math.max(panel.getXMin(), panel.getXMax());
+			double yLow = Math.min(panel.getYMin(), panel.getYMax()), yHigh = Math.max(panel.getYMin(), panel.getYMax());
+			for(Particle p : particles) {
+				SerializableTrail trail = p.getTrail();
+				if(trail.intersects(xLow, xHigh, yLow, yHigh)) trail.draw(panel, g);
+			}
+		}
+
+		int words = (int)(((long)width * height + 63) >>> 6);
+		if(covered.length < words) covered = new long[words];
+		else Arrays.fill(covered, 0, words, 0);
+
+		for(int i = 0; i < particles.length; i++) {
+			pixX[i] = panel.xToPix(particles[i].getDrawnX());
+			pixY[i] = panel.yToPix(particles[i].getDrawnY());
+		}
+		for(int i = 0; i < particles.length; i++) {
+			Particle p = particles[i];
+			int r = Math.max(0, p.getPixRadius());
+			int px = pixX[i], py = pixY[i];
+			if(px + r < 0 || py + r < 0 || px - r >= width || py - r >= height) continue; //off screen
+
+			if(r <= POINT_RADIUS) {
+				if(px < 0 || py < 0 || px >= width || py >= height) continue; //its center is off screen
+				int pixel = py * width + px;
+				if((covered[pixel >>> 6] & (1L << pixel)) != 0) continue; //something is already drawn there
+				covered[pixel >>> 6] |= 1L << pixel;
+				g.setColor(p.color);
+				g.fillRect(px - r, py - r, Math.max(1, 2 * r), Math.max(1, 2 * r));
+			}
+			else if(r <= MAX_SPRITE_RADIUS) g.drawImage(sprite(p.color, r), px - r, py - r, null);
+			else {
+				g.setColor(p.color);
+				g.fillOval(px - r, py - r, 2 * r, 2 * r);
+			}
+		}
+		if(profiler != null) profiler.record(StepProfiler.PAINTING, System.nanoTime() - start);
+	}
+
+	/**
+	 * @return an image of a filled circle of the given color and radius, drawn the same way <code>Circle</code> draws itself
+	 */
+	private BufferedImage sprite(Color color, int r) {
+		Long key = ((long)color.getRGB() << 32) | r;
+		BufferedImage sprite = sprites.get(key);
+		if(sprite == null) {
+			if(sprites.size() >= MAX_SPRITES) sprites.clear(); //many colors, as after lots of merges; start over rather than grow
+			sprite = new BufferedImage(2 * r + 1, 2 * r + 1, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = sprite.createGraphics();
+			g.setColor(color);
+			g.fillOval(0, 0, 2 * r, 2 * r);
+			g.dispose();
+			sprites.put(key, sprite);
+		}
+		return sprite;
+	}
+
+}
@@ -64,7 +64,7 @@ public class ParticleMouseController extends MouseInputAdapter {
 		tempParticle.setXVel(DRAG_FOR_VELOCITY_CONSTANT * (mouseRealeasedCoords[0] - mousePressedCoords[0]) / (dragTimeMillis / 1000));
 		tempParticle.setYVel(DRAG_FOR_VELOCITY_CONSTANT * (mouseRealeasedCoords[1] - mousePressedCoords[1]) / (dragTimeMillis / 1000));
 		
-		simulation.particles.add(tempParticle);
+		simulation.addParticle(tempParticle);
 		simulation.cacheCurrentState();
 		tempParticle = null;
 	}
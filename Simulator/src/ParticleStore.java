@@ -0,0 +1,129 @@
+import java.util.Arrays;
+
+/**
+ * ParticleStore
+ * Holds the physical state of every particle in parallel primitive arrays so that the physics
+ * can step over contiguous memory instead of chasing references through <code>Particle</code> objects.
+ * Index i of each array belongs to the same particle. Arrays may be longer than <code>size</code>;
+ * only the first <code>size</code> entries are meaningful.
+ * <p>
+ * <code>Particle</code>s bound to a store read and write their state through it, so the arrays
+ * are always the authoritative copy while a particle is in the simulation.
+ * @author Russell Kaplan
+ *
+ */
+public class ParticleStore {
+
+	final private static int INITIAL_CAPACITY = 16;
+
+	public double[] x;
+	public double[] y;
+	public double[] vx;
+	public double[] vy;
+	public double[] ax;
+	public double[] ay;
+	public double[] mass;
+	public double[] radius; //physical radius, in world units
+	public int size;
+	public boolean accelerationsValid; //whether ax and ay were computed from the current positions and masses
+
+	public ParticleStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public ParticleStore(int capacity) {
+		x = new double[capacity];
+		y = new double[capacity];
+		vx = new double[capacity];
+		vy = new double[capacity];
+		ax = new double[capacity];
+		ay = new double[capacity];
+		mass = new double[capacity];
+		radius = new double[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Appends a particle to the end of the store.
+	 * @return the index of the new particle
+	 */
+	public int add(double x, double y, double vx, double vy, double ax, double ay, double mass, double radius) {
+		ensureCapacity(size + 1);
+		int i = size++;
+		this.x[i] = x;
+		this.y[i] = y;
+		this.vx[i] = vx;
+		this.vy[i] = vy;
+		this.ax[i] = ax;
+		this.ay[i] = ay;
+		this.mass[i] = mass;
+		this.radius[i] = radius;
+		accelerationsValid = false;
+		return i;
+	}
+
+	/**
+	 * Appends <code>count</code> particles at once from the start of the given columns, with no acceleration.
+	 * @return the index of the first new particle
+	 */
+	public int addAll(int count, double[] x, double[] y, double[] vx, double[] vy, double[] mass, double[] radius) {
+		ensureCapacity(size + count);
+		int first = size;
+		System.arraycopy(x, 0, this.x, first, count);
+		System.arraycopy(y, 0, this.y, first, count);
+		System.arraycopy(vx, 0, this.vx, first, count);
+		System.arraycopy(vy, 0, this.vy, first, count);
+		Arrays.fill(ax, first, first + count, 0);
+		Arrays.fill(ay, first, first + count, 0);
+		System.arraycopy(mass, 0, this.mass, first, count);
+		System.arraycopy(radius, 0, this.radius, first, count);
+		size += count;
+		accelerationsValid = false;
+		return first;
+	}
+
+	/**
+	 * Adds <code>acceleration * dt</code> to the velocities of particles <code>from</code> (inclusive) to <code>to</code> (exclusive).
+	 */
+	public void kick(double dt, int from, int to) {
+		for(int i = from; i < to; i++) {
+			vx[i] = vx[i] + ax[i] * dt;
+			vy[i] = vy[i] + ay[i] * dt;
+		}
+	}
+
+	/**
+	 * Adds <code>velocity * dt</code> to the positions of particles <code>from</code> (inclusive) to <code>to</code> (exclusive).
+	 * Callers are responsible for clearing <code>accelerationsValid</code>.
+	 */
+	public void drift(double dt, int from, int to) {
+		for(int i = from; i < to; i++) {
+			x[i] = x[i] + vx[i] * dt;
+			y[i] = y[i] + vy[i] * dt;
+		}
+	}
+
+	public void clear() {
+		size = 0;
+		accelerationsValid = false;
+	}
+
+	public void ensureCapacity(int capacity) {
+		if(capacity <= x.length) return;
+
+		int newCapacity = Math.max(capacity, 2 * x.length);
+		x = Arrays.copyOf(x, newCapacity);
+		y = Arrays.copyOf(y, newCapacity);
+		vx = Arrays.copyOf(vx, newCapacity);
+		vy = Arrays.copyOf(vy, newCapacity);
+		ax = Arrays.copyOf(ax, newCapacity);
+		ay = Arrays.copyOf(ay, newCapacity);
+		mass = Arrays.copyOf(mass, newCapacity);
+		radius = Arrays.copyOf(radius, newCapacity);
+	}
+
+	public int capacity() {
+		return x.length;
+	}
+
+}
@@ -0,0 +1,114 @@
+/**
+ * PhysicsKernel
+ * The operations that integrators are built from: computing accelerations, kicking velocities
+ * and drifting positions. Each operation runs on a <code>ParallelStepper</code> when one is set,
+ * and on the calling thread otherwise.
+ * @author Russell Kaplan
+ *
+ */
+public class PhysicsKernel {
+
+	private ForceSolver solver;
+	private ParallelStepper parallelStepper; //null when stepping on the calling thread alone
+	private StepProfiler profiler; //null when not profiling
+	private double gravConstant;
+
+	public PhysicsKernel(ForceSolver solver, double gravConstant) {
+		this.solver = solver;
+		this.gravConstant = gravConstant;
+	}
+
+	/**
+	 * Computes the acceleration of every particle from the current positions.
+	 */
+	public void computeAccelerations(ParticleStore store) {
+		if(profiler != null) profiler.forcesStarted();
+		if(parallelStepper != null) parallelStepper.computeAccelerations(solver, store, gravConstant);
+		else solver.computeAccelerations(store, gravConstant);
+		store.accelerationsValid = true;
+		if(profiler != null) profiler.forcesFinished();
+	}
+
+	/**
+	 * Computes the accelerations of only the particles listed in the first <code>count</code> entries of
+	 * <code>indices</code>, from the current positions of all particles.
+	 */
+	public void computeAccelerations(final ParticleStore store, final int[] indices, int count) {
+		if(count == 0) return;
+		if(profiler != null) profiler.forcesStarted();
+		final ForceSolver solver = this.solver;
+		final double gravConstant = this.gravConstant;
+		solver.prepare(store, gravConstant);
+
+		ParallelStepper.BlockTask task = new ParallelStepper.BlockTask() {
+			public void run(int from, int to) {
+				for(int k = from; k < to; k++) {
+					solver.computeAccelerations(store, gravConstant, indices[k], indices[k] + 1);
+				}
+			}
+		};
+		if(parallelStepper != null) parallelStepper.forEachBlock(count, task);
+		else task.run(0, count);
+		if(profiler != null) profiler.forcesFinished();
+	}
+
+	/**
+	 * Computes accelerations only if the positions or masses have changed since they were last computed.
+	 */
+	public void ensureAccelerations(ParticleStore store) {
+		if(!store.accelerationsValid) computeAccelerations(store);
+	}
+
+	/**
+	 * Adds <code>acceleration * dt</code> to every velocity.
+	 */
+	public void kick(ParticleStore store, double dt) {
+		if(parallelStepper != null) parallelStepper.kick(store, dt);
+		else store.kick(dt, 0, store.size);
+	}
+
+	/**
+	 * Adds <code>velocity * dt</code> to every position.
+	 */
+	public void drift(ParticleStore store, double dt) {
+		if(parallelStepper != null) parallelStepper.drift(store, dt);
+		else store.drift(dt, 0, store.size);
+		store.accelerationsValid = false;
+	}
+
+	public ForceSolver getSolver() {
+		return solver;
+	}
+
+	public void setSolver(ForceSolver solver) {
+		this.solver = solver;
+	}
+
+	public ParallelStepper getParallelStepper() {
+		return parallelStepper;
+	}
+
+	public void setParallelStepper(ParallelStepper parallelStepper) {
+		this.parallelStepper = parallelStepper;
+	}
+
+	public StepProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * @param profiler times each force calculation, or null for none
+	 */
+	public void setProfiler(StepProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	public double getGravConstant() {
+		return gravConstant;
+	}
+
+	public void setGravConstant(double gravConstant) {
+		this.gravConstant = gravConstant;
+	}
+
+}
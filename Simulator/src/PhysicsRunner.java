@@ -0,0 +1,138 @@
+/**
+ * PhysicsRunner
+ * Steps an <code>OrbitalEngine</code> on its own thread, either as fast as possible or at a target
+ * number of steps per second, independently of how often the display is repainted.
+ * <p>
+ * After a step, if the renderer has finished with the last snapshot it was given, the runner copies
+ * the particle positions into the other of two <code>RenderSnapshot</code> buffers and publishes it.
+ * The renderer picks it up with <code>takeSnapshot</code> and hands it back with
+ * <code>releaseSnapshot</code>, so neither thread ever sees a buffer the other is writing, and the
+ * runner only pays for one copy per displayed frame no matter how many steps it takes in between.
+ * <p>
+ * Each step is taken while holding the engine's lock, so other threads can safely change the
+ * engine by synchronizing on it.
+ * @author Russell Kaplan
+ *
+ */
+public class PhysicsRunner implements Runnable {
+
+	private OrbitalEngine engine;
+	private volatile double targetStepsPerSecond; //0 for as fast as possible
+
+	private Thread thread;
+	private volatile boolean running;
+	private long steps;
+
+	private RenderSnapshot[] buffers = {new RenderSnapshot(), new RenderSnapshot()};
+	private volatile RenderSnapshot published;
+	private volatile boolean publishedTaken; //whether the renderer has finished with the published snapshot
+
+	public PhysicsRunner(OrbitalEngine engine) {
+		this.engine = engine;
+		this.publishedTaken = true;
+	}
+
+	public synchronized void start() {
+		if(running) return;
+		running = true;
+		thread = new Thread(this, "Physics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops stepping and waits for the step in progress to finish.
+	 */
+	public synchronized void stop() {
+		if(!running) return;
+		running = false;
+		try {
+			thread.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	@Override
+	public void run() {
+		long start = System.nanoTime();
+		long stepsSinceStart = 0;
+		double rate = targetStepsPerSecond;
+
+		while(running) {
+			synchronized(engine) {
+				engine.step();
+				steps++;
+				if(publishedTaken) publish();
+			}
+			stepsSinceStart++;
+
+			//restart the pacing clock whenever the target changes:
+			if(rate != targetStepsPerSecond) {
+				rate = targetStepsPerSecond;
+				start = System.nanoTime();
+				stepsSinceStart = 0;
+			}
+
+			if(rate > 0) {
+				long due = start + (long)(stepsSinceStart * 1E9 / rate);
+				long wait = due - System.nanoTime();
+				if(wait > 0) {
+					try {
+						Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+					}
+					catch(InterruptedException e) {
+						return;
+					}
+				}
+			}
+			else Thread.yield(); //give the EDT a chance at the engine lock
+		}
+	}
+
+	/**
+	 * Copies the engine's current positions into a snapshot for the renderer, even if it hasn't taken the last one.
+	 * The caller must hold the engine's lock, and must not call this while a snapshot is taken and not yet released.
+	 */
+	public void publish() {
+		RenderSnapshot next = (published == buffers[0]) ? buffers[1] : buffers[0];
+		next.capture(engine, steps);
+		published = next;
+		publishedTaken = false;
+	}
+
+	/**
+	 * @return the newest snapshot, or null if there hasn't been a new one since the last call.
+	 * It must be handed back with <code>releaseSnapshot</code> once it has been drawn.
+	 */
+	public RenderSnapshot takeSnapshot() {
+		if(publishedTaken) return null;
+		return published;
+	}
+
+	public void releaseSnapshot() {
+		publishedTaken = true;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public long getSteps() {
+		return steps;
+	}
+
+	public double getTargetStepsPerSecond() {
+		return targetStepsPerSecond;
+	}
+
+	/**
+	 * @param targetStepsPerSecond how many steps to take per second of wall-clock time, or 0 for as many as possible
+	 */
+	public void setTargetStepsPerSecond(double targetStepsPerSecond) {
+		this.targetStepsPerSecond = Math.max(0, targetStepsPerSecond);
+	}
+
+}
@@ -0,0 +1,58 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+
+import org.opensourcephysics.display.Drawable;
+import org.opensourcephysics.display.DrawingPanel;
+
+/**
+ * ProfilerOverlay
+ * Draws a <code>StepProfiler</code>'s summary in the top left corner of a drawing panel, along
+ * with how many frames per second the panel is being repainted at. It is drawn in pixels, so it
+ * stays put and readable however the panel is zoomed or panned.
+ * @author Russell Kaplan
+ *
+ */
+public class ProfilerOverlay implements Drawable {
+
+	final private static Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+	final private static Color BACKGROUND = new Color(255, 255, 255, 200);
+	final private static int MARGIN = 6;
+
+	private StepProfiler profiler;
+	private long lastFrame;
+	private double framesPerSecond;
+
+	public ProfilerOverlay(StepProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	@Override
+	public void draw(DrawingPanel panel, Graphics g) {
+		long now = System.nanoTime();
+		if(lastFrame != 0) framesPerSecond = 0.9 * framesPerSecond + 0.1 * (1E9 / Math.max(1, now - lastFrame)); //smoothed
+		lastFrame = now;
+
+		String[] lines = (profiler.summary() + String.format("%n%.0f frames/s", framesPerSecond)).split("\\r?\\n");
+		g.setFont(FONT);
+		FontMetrics metrics = g.getFontMetrics();
+		int width = 0;
+		for(String line : lines) {
+			width = Math.max(width, metrics.stringWidth(line));
+		}
+		int lineHeight = metrics.getHeight();
+
+		g.setColor(BACKGROUND);
+		g.fillRect(MARGIN, MARGIN, width + 2 * MARGIN, lines.length * lineHeight + 2 * MARGIN);
+		g.setColor(Color.BLACK);
+		for(int k = 0; k < lines.length; k++) {
+			g.drawString(lines[k], 2 * MARGIN, 2 * MARGIN + k * lineHeight + metrics.getAscent());
+		}
+	}
+
+	public StepProfiler getProfiler() {
+		return profiler;
+	}
+
+}
@@ -0,0 +1,87 @@
+/**
+ * RK4Integrator
+ * Classical fourth-order Runge-Kutta. Very accurate over short spans, but not symplectic,
+ * so energy slowly drifts over long runs. Four force evaluations per step.
+ * @author Russell Kaplan
+ *
+ */
+public class RK4Integrator extends Integrator {
+
+	//scratch arrays, reused between steps:
+	private double[] x0 = new double[0], y0; //positions at the start of the step
+	private double[] stageXVel, stageYVel; //velocity at the current stage
+	private double[] sumXVel, sumYVel; //weighted sum of stage velocities
+	private double[] sumXAccel, sumYAccel; //weighted sum of stage accelerations
+
+	@Override
+	public void step(ParticleStore store, PhysicsKernel kernel, double timeInterval) {
+		int n = store.size;
+		if(x0.length < n) allocate(store.capacity());
+
+		double[] x = store.x, y = store.y, vx = store.vx, vy = store.vy, ax = store.ax, ay = store.ay;
+		double h = timeInterval;
+
+		//stage 1, at the start of the step:
+		kernel.ensureAccelerations(store);
+		for(int i = 0; i < n; i++) {
+			x0[i] = x[i];
+			y0[i] = y[i];
+			sumXVel[i] = vx[i];
+			sumYVel[i] = vy[i];
+			sumXAccel[i] = ax[i];
+			sumYAccel[i] = ay[i];
+			stageXVel[i] = vx[i] + h/2 * ax[i];
+			stageYVel[i] = vy[i] + h/2 * ay[i];
+			x[i] = x0[i] + h/2 * vx[i];
+			y[i] = y0[i] + h/2 * vy[i];
+		}
+
+		//stages 2 and 3, at the midpoint:
+		for(int stage = 2; stage <= 3; stage++) {
+			double next = (stage == 2) ? h/2 : h; //how far ahead the following stage is evaluated
+			kernel.computeAccelerations(store);
+			for(int i = 0; i < n; i++) {
+				sumXVel[i] += 2 * stageXVel[i];
+				sumYVel[i] += 2 * stageYVel[i];
+				sumXAccel[i] += 2 * ax[i];
+				sumYAccel[i] += 2 * ay[i];
+				x[i] = x0[i] + next * stageXVel[i];
+				y[i] = y0[i] + next * stageYVel[i];
+				stageXVel[i] = vx[i] + next * ax[i];
+				stageYVel[i] = vy[i] + next * ay[i];
+			}
+		}
+
+		//stage 4, at the end of the step:
+		kernel.computeAccelerations(store);
+		for(int i = 0; i < n; i++) {
+			sumXVel[i] += stageXVel[i];
+			sumYVel[i] += stageYVel[i];
+			sumXAccel[i] += ax[i];
+			sumYAccel[i] += ay[i];
+			x[i] = x0[i] + h/6 * sumXVel[i];
+			y[i] = y0[i] + h/6 * sumYVel[i];
+			vx[i] += h/6 * sumXAccel[i];
+			vy[i] += h/6 * sumYAccel[i];
+		}
+
+		store.accelerationsValid = false; //the last accelerations were computed at a trial position
+	}
+
+	private void allocate(int capacity) {
+		x0 = new double[capacity];
+		y0 = new double[capacity];
+		stageXVel = new double[capacity];
+		stageYVel = new double[capacity];
+		sumXVel = new double[capacity];
+		sumYVel = new double[capacity];
+		sumXAccel = new double[capacity];
+		sumYAccel = new double[capacity];
+	}
+
+	@Override
+	public String getName() {
+		return "RK4";
+	}
+
+}
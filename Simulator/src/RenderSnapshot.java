@@ -0,0 +1,70 @@
+/**
+ * RenderSnapshot
+ * The positions of every particle at the end of one physics step, copied out of the engine so that
+ * they can be drawn while the engine keeps stepping on another thread. Only <code>PhysicsRunner</code>
+ * writes to a snapshot, and never while it is published to the renderer.
+ * @author Russell Kaplan
+ *
+ */
+public class RenderSnapshot {
+
+	private Particle[] particles = new Particle[0];
+	private double[] x = new double[0];
+	private double[] y = new double[0];
+	private int count;
+	private double timeElapsed;
+	private long step;
+	private int structureVersion;
+
+	/**
+	 * Copies the current positions out of <code>engine</code>. The caller must hold the engine's lock.
+	 */
+	void capture(OrbitalEngine engine, long step) {
+		ParticleStore store = engine.getStore();
+		count = store.size;
+		if(x.length < count) {
+			x = new double[store.capacity()];
+			y = new double[store.capacity()];
+		}
+		System.arraycopy(store.x, 0, x, 0, count);
+		System.arraycopy(store.y, 0, y, 0, count);
+
+		//the particle list only changes when the structure does:
+		if(structureVersion != engine.getStructureVersion() || particles.length != count) {
+			particles = engine.getParticles().toArray(new Particle[count]);
+			structureVersion = engine.getStructureVersion();
+		}
+
+		this.timeElapsed = engine.getTimeElapsed();
+		this.step = step;
+	}
+
+	public Particle getParticle(int i) {
+		return particles[i];
+	}
+
+	public double getX(int i) {
+		return x[i];
+	}
+
+	public double getY(int i) {
+		return y[i];
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public double getTimeElapsed() {
+		return timeElapsed;
+	}
+
+	public long getStep() {
+		return step;
+	}
+
+	public int getStructureVersion() {
+		return structureVersion;
+	}
+
+}
@@ -0,0 +1,267 @@
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * ScenarioGenerator
+ * Builds large systems procedurally, straight into an <code>OrbitalEngine</code>: Keplerian disks
+ * and belts around a central star, Plummer spheres and pairs of colliding clusters. Bodies are
+ * generated into primitive columns and added with <code>OrbitalEngine.addParticles</code>, so even
+ * 100,000 of them take well under a second.
+ * <p>
+ * Everything random comes from one generator seeded on construction, so the same seed and the same
+ * calls always give the same system. Velocities use the engine's gravitational constant, so set that first.
+ * <p>
+ * Usage: <code>java ScenarioGenerator SCENARIO --bodies N [options]</code>, where <code>SCENARIO</code> is one of <code>NAMES</code>
+ * <pre>
+ *   --bodies N              number of bodies, not counting a central star
+ *   --seed S                seed for the random numbers (default: 1)
+ *   --size R                outer radius of the system (default: 3E6)
+ *   --mass M                mass of the central star, or of each cluster (default: the sun's)
+ *   --g G                   gravitational constant (default: 6.67384E-11)
+ *   --dt DT                 time interval saved with the scenario (default: 0.01)
+ *   --elastic               save the scenario with elastic collisions
+ *   --out FILE              where to write it (default: SCENARIO-N.orbital)
+ * </pre>
+ * @author Russell Kaplan
+ *
+ */
+public class ScenarioGenerator {
+
+	final public static String[] NAMES = {"disk", "plummer", "belt", "clusters"};
+
+	final public static double DEFAULT_SIZE = 3E6;
+	final public static double DEFAULT_MASS = 1.98892E30;
+	final public static double DEFAULT_GRAV_CONSTANT = 6.67384E-11;
+	final public static double DEFAULT_TIME_INTERVAL = 0.01;
+
+	final private static double PLUMMER_MASS_FRACTION = 0.999; //cuts off the sphere's endless tail at about 30 scale radii
+	final private static double BELT_VELOCITY_SCATTER = 0.01; //relative spread of belt speeds around circular, giving small eccentricities
+	final private static int STAR_PIX_RADIUS = 10;
+
+	private Random random;
+	private int bodyPixRadius = 1;
+
+	public ScenarioGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		if(args.length == 0) {
+			usage("no scenario given");
+			return;
+		}
+
+		String scenario = args[0];
+		int bodies = -1;
+		long seed = 1;
+		double size = DEFAULT_SIZE;
+		double mass = DEFAULT_MASS;
+		double gravConstant = DEFAULT_GRAV_CONSTANT;
+		double timeInterval = DEFAULT_TIME_INTERVAL;
+		boolean elastic = false;
+		File output = null;
+
+		try {
+			for(int i = 1; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--bodies")) bodies = Integer.parseInt(args[++i]);
+				else if(arg.equals("--seed")) seed = Long.parseLong(args[++i]);
+				else if(arg.equals("--size")) size = Double.parseDouble(args[++i]);
+				else if(arg.equals("--mass")) mass = Double.parseDouble(args[++i]);
+				else if(arg.equals("--g")) gravConstant = Double.parseDouble(args[++i]);
+				else if(arg.equals("--dt")) timeInterval = Double.parseDouble(args[++i]);
+				else if(arg.equals("--elastic")) elastic = true;
+				else if(arg.equals("--out")) output = new File(args[++i]);
+				else {
+					usage("unknown option " + arg);
+					return;
+				}
+			}
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			usage("missing value for " + args[args.length - 1]);
+			return;
+		}
+		catch(NumberFormatException e) {
+			usage(e.getMessage());
+			return;
+		}
+
+		if(!isScenario(scenario)) {
+			usage("unknown scenario " + scenario);
+			return;
+		}
+		if(bodies < 1) {
+			usage("--bodies is required and must be at least 1");
+			return;
+		}
+		if(output == null) output = new File(scenario + "-" + bodies + ".orbital");
+
+		long start = System.nanoTime();
+		OrbitalEngine engine = new OrbitalEngine(timeInterval, gravConstant);
+		engine.setElasticCollisions(elastic);
+		new ScenarioGenerator(seed).generate(scenario, engine, bodies, size, mass);
+		long generated = System.nanoTime();
+
+		try {
+			engine.currentState().save(output);
+		}
+		catch(IOException e) {
+			System.err.println("Could not write " + output + ": " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.out.println("Generated " + engine.getParticles().size() + " particles in " + (generated - start) / 1000000 + " ms and wrote them to " + output + ".");
+	}
+
+	/**
+	 * @return whether <code>name</code> is one of <code>NAMES</code>
+	 */
+	public static boolean isScenario(String name) {
+		return Arrays.asList(NAMES).contains(name);
+	}
+
+	/**
+	 * Adds one of the named scenarios with proportions suited to a system <code>size</code> across (in radius):
+	 * <ul>
+	 * <li><code>disk</code>: a star of mass <code>mass</code> with a disk from a tenth of <code>size</code> out to
+	 * <code>size</code> holding a hundredth of its mass</li>
+	 * <li><code>plummer</code>: a Plummer sphere of mass <code>mass</code> and scale radius a quarter of <code>size</code></li>
+	 * <li><code>belt</code>: a star of mass <code>mass</code> with a thin belt at 0.7 <code>size</code> holding a thousandth of its mass</li>
+	 * <li><code>clusters</code>: two Plummer spheres of mass <code>mass</code>, <code>size</code> apart, falling into each other off-center</li>
+	 * </ul>
+	 * @param bodies how many bodies to add, not counting a central star
+	 * @throws IllegalArgumentException if <code>scenario</code> isn't one of <code>NAMES</code>
+	 */
+	public void generate(String scenario, OrbitalEngine engine, int bodies, double size, double mass) {
+		if(scenario.equals("disk")) keplerianDisk(engine, bodies, mass, 0.1 * size, size, 0.01 * mass);
+		else if(scenario.equals("plummer")) plummerSphere(engine, bodies, mass, 0.25 * size, 0, 0, 0, 0, Color.RED);
+		else if(scenario.equals("belt")) belt(engine, bodies, mass, 0.7 * size, 0.05 * size, 0.001 * mass);
+		else if(scenario.equals("clusters")) {
+			double speed = Math.sqrt(engine.getGravConstant() * 2 * mass / size); //about what they'd reach falling together from far away
+			collidingClusters(engine, bodies, mass, size / 8, size, size / 4, speed);
+		}
+		else throw new IllegalArgumentException("unknown scenario " + scenario);
+	}
+
+	/**
+	 * Adds a star at the origin and a disk of bodies around it with even surface density from <code>innerRadius</code>
+	 * to <code>outerRadius</code>, each moving counterclockwise at the circular speed for the mass inside its orbit.
+	 */
+	public void keplerianDisk(OrbitalEngine engine, int count, double starMass, double innerRadius, double outerRadius, double diskMass) {
+		engine.addParticle(new Particle("Star", 0, 0, 0, 0, starMass, STAR_PIX_RADIUS, Color.ORANGE));
+
+		Columns c = new Columns(count, diskMass / count, bodyPixRadius);
+		double inner2 = innerRadius * innerRadius;
+		double outer2 = outerRadius * outerRadius;
+		for(int i = 0; i < count; i++) {
+			double fraction = random.nextDouble(); //of the disk's area, and so its mass, inside this body's orbit
+			double r = Math.sqrt(inner2 + fraction * (outer2 - inner2));
+			double speed = Math.sqrt(engine.getGravConstant() * (starMass + fraction * diskMass) / r);
+			c.setOrbit(i, r, 2 * Math.PI * random.nextDouble(), speed);
+		}
+		engine.addParticles(count, c.x, c.y, c.vx, c.vy, c.mass, c.radius, "Disk", bodyPixRadius, Color.BLUE);
+	}
+
+	/**
+	 * Adds a star at the origin and a belt of bodies around it, normally distributed about <code>radius</code>
+	 * with standard deviation <code>width</code>, on nearly circular counterclockwise orbits.
+	 */
+	public void belt(OrbitalEngine engine, int count, double starMass, double radius, double width, double beltMass) {
+		engine.addParticle(new Particle("Star", 0, 0, 0, 0, starMass, STAR_PIX_RADIUS, Color.ORANGE));
+
+		Columns c = new Columns(count, beltMass / count, bodyPixRadius);
+		for(int i = 0; i < count; i++) {
+			double r = Math.max(0.1 * radius, radius + width * random.nextGaussian());
+			double speed = Math.sqrt(engine.getGravConstant() * starMass / r) * (1 + BELT_VELOCITY_SCATTER * random.nextGaussian());
+			c.setOrbit(i, r, 2 * Math.PI * random.nextDouble(), speed);
+		}
+		engine.addParticles(count, c.x, c.y, c.vx, c.vy, c.mass, c.radius, "Belt", bodyPixRadius, Color.BLACK);
+	}
+
+	/**
+	 * Adds a Plummer sphere seen face on: bodies laid out with the projected Plummer profile around (x, y), and moving
+	 * with (vx, vy) plus random velocities from the model's dispersion at their distance from the center, so it starts
+	 * roughly in equilibrium.
+	 */
+	public void plummerSphere(OrbitalEngine engine, int count, double totalMass, double scaleRadius,
+			double x, double y, double vx, double vy, Color color) {
+		Columns c = new Columns(count, totalMass / count, bodyPixRadius);
+		double a2 = scaleRadius * scaleRadius;
+		for(int i = 0; i < count; i++) {
+			double fraction = PLUMMER_MASS_FRACTION * random.nextDouble(); //of the mass inside this body's projected radius
+			double r = scaleRadius * Math.sqrt(fraction / (1 - fraction));
+			double angle = 2 * Math.PI * random.nextDouble();
+			double dispersion = Math.sqrt(engine.getGravConstant() * totalMass / (6 * Math.sqrt(r * r + a2)));
+			c.x[i] = x + r * Math.cos(angle);
+			c.y[i] = y + r * Math.sin(angle);
+			c.vx[i] = vx + dispersion * random.nextGaussian();
+			c.vy[i] = vy + dispersion * random.nextGaussian();
+		}
+		engine.addParticles(count, c.x, c.y, c.vx, c.vy, c.mass, c.radius, "Cluster", bodyPixRadius, color);
+	}
+
+	/**
+	 * Adds two Plummer spheres, each of mass <code>clusterMass</code> and half of the <code>count</code> bodies,
+	 * centered <code>separation</code> apart along the x axis and offset by <code>impactParameter</code> along the y
+	 * axis, heading towards each other at a combined <code>speed</code>.
+	 */
+	public void collidingClusters(OrbitalEngine engine, int count, double clusterMass, double scaleRadius,
+			double separation, double impactParameter, double speed) {
+		plummerSphere(engine, count / 2, clusterMass, scaleRadius, -separation / 2, -impactParameter / 2, speed / 2, 0, Color.CYAN);
+		plummerSphere(engine, count - count / 2, clusterMass, scaleRadius, separation / 2, impactParameter / 2, -speed / 2, 0, Color.MAGENTA);
+	}
+
+	public int getBodyPixRadius() {
+		return bodyPixRadius;
+	}
+
+	/**
+	 * @param bodyPixRadius how large generated bodies (but not stars) are drawn, which also sets their physical radius
+	 */
+	public void setBodyPixRadius(int bodyPixRadius) {
+		this.bodyPixRadius = Math.max(1, bodyPixRadius);
+	}
+
+	private static void usage(String problem) {
+		System.err.println("Error: " + problem);
+		System.err.println("Usage: java ScenarioGenerator (disk | plummer | belt | clusters) --bodies N [--seed S] [--size R] [--mass M]");
+		System.err.println("                              [--g G] [--dt DT] [--elastic] [--out FILE]");
+		System.exit(2);
+	}
+
+	/**
+	 * The physical state of a batch of bodies of equal mass and size, one array per property.
+	 */
+	private static class Columns {
+		final double[] x, y, vx, vy, mass, radius;
+
+		Columns(int count, double bodyMass, int pixRadius) {
+			x = new double[count];
+			y = new double[count];
+			vx = new double[count];
+			vy = new double[count];
+			mass = new double[count];
+			radius = new double[count];
+			Arrays.fill(mass, bodyMass);
+			Arrays.fill(radius, pixRadius * OrbitalEngine.WORLD_UNITS_PER_PIXEL); //as Particle's constructor does
+		}
+
+		/**
+		 * Puts body <code>i</code> at <code>angle</code> on a circle of radius <code>r</code> around the origin, moving counterclockwise at <code>speed</code>.
+		 */
+		void setOrbit(int i, double r, double angle, double speed) {
+			double cos = Math.cos(angle), sin = Math.sin(angle);
+			x[i] = r * cos;
+			y[i] = r * sin;
+			vx[i] = -speed * sin;
+			vy[i] = speed * cos;
+		}
+	}
+
+}
@@ -1,14 +1,413 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.PathIterator;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import org.opensourcephysics.display.Trail;
 
+import org.opensourcephysics.display.DrawingPanel;
+import org.opensourcephysics.display.Trail;
 
+/**
+ * SerializableTrail
+ * A trail that holds at most <code>capacity</code> points, so a particle's memory stays the same
+ * however long the simulation runs.
+ * <p>
+ * Points are kept in a ring buffer of primitive arrays rather than in <code>Trail</code>'s
+ * <code>GeneralPath</code>. When the buffer fills, every other point in its older half is dropped,
+ * so recent motion stays at full resolution while older history is thinned more each time the
+ * buffer fills again. Each point remembers how many added points it stands for, and once the trail
+ * reaches back over more than <code>length</code> of them the oldest are dropped. Since older points
+ * keep being thinned out, a trail of n points reaches back at most about (n / 2) log2(n) added points
+ * whatever its length.
+ * @author Russell Kaplan
+ *
+ */
 public class SerializableTrail extends Trail implements Serializable {
 
 	private static final long serialVersionUID = 1L;
-	
+
+	final public static int DEFAULT_CAPACITY = 1024;
+	final public static int DEFAULT_LENGTH = 4096;
+	final private static int INITIAL_ARRAY_LENGTH = 4;
+
+	//each thread's scratch space for drawing, shared by every trail so that none keeps an array the size of its capacity:
+	final private static ThreadLocal<int[][]> pixels = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			return new int[2][0];
+		}
+	};
+
+	//settings given to trails as they are created or loaded:
+	private static int defaultCapacity = DEFAULT_CAPACITY;
+	private static int defaultLength = DEFAULT_LENGTH;
+
+	private int capacity; //most points the trail will hold
+	private int length; //most added points the trail will reach back over, or 0 for no limit
+	private double[] pointsX; //ring buffer of points, oldest at start; null in files saved before it existed
+	private double[] pointsY;
+	private int[] weights; //how many added points each point stands for, counting back to the point before it
+	private int start;
+	private int count;
+	private long span; //total of the weights
+	private transient long added; //points ever added, including to the trail this was copied from, so a cached drawing can tell which are new
+	private transient boolean shared; //whether the arrays may also belong to a copy, and must be copied before changing them
+
+
+	public SerializableTrail() {
+		this(defaultCapacity, defaultLength);
+	}
+
+	/**
+	 * @param capacity most points to hold
+	 * @param length most added points to reach back over, or 0 for no limit
+	 */
+	public SerializableTrail(int capacity, int length) {
+		this.capacity = Math.max(4, capacity);
+		this.length = Math.max(0, length);
+		allocate();
+	}
+
+	/**
+	 * @return a trail with the same points and settings as this one. The two share their point arrays
+	 * until either one changes, so copying is cheap no matter how long the trail is.
+	 */
+	public synchronized SerializableTrail copy() {
+		SerializableTrail copy = new SerializableTrail(this);
+		shared = true;
+		return copy;
+	}
+
+	private SerializableTrail(SerializableTrail original) {
+		this.capacity = original.capacity;
+		this.length = original.length;
+		this.pointsX = original.pointsX;
+		this.pointsY = original.pointsY;
+		this.weights = original.weights;
+		this.start = original.start;
+		this.count = original.count;
+		this.span = original.span;
+		this.added = original.added;
+		this.shared = true;
+
+		this.color = original.color;
+		this.closed = original.closed;
+		this.drawingStroke = original.drawingStroke;
+		this.numpts = original.numpts;
+		this.xmin = original.xmin;
+		this.xmax = original.xmax;
+		this.ymin = original.ymin;
+		this.ymax = original.ymax;
+	}
+
+	/**
+	 * @return whether <code>other</code> is an unchanged copy of this trail, or this one of it. Cheap, since
+	 * it only checks whether the two still share their points.
+	 */
+	public synchronized boolean sameAs(SerializableTrail other) {
+		return pointsX == other.pointsX && start == other.start && count == other.count && span == other.span && color.equals(other.color);
+	}
+
+	/**
+	 * Gives this trail its own copy of the point arrays if they might be shared.
+	 */
+	private void unshare() {
+		if(!shared) return;
+		pointsX = pointsX.clone();
+		pointsY = pointsY.clone();
+		weights = weights.clone();
+		shared = false;
+	}
+
+	/**
+	 * Creates a trail holding the first <code>count</code> of the given points, oldest first, as read back from a file.
+	 */
+	static SerializableTrail fromPoints(int capacity, int length, double[] x, double[] y, int[] weights, int count) {
+		SerializableTrail trail = new SerializableTrail(Math.max(capacity, count), length);
+		if(count == 0) return trail;
+		trail.pointsX = x;
+		trail.pointsY = y;
+		trail.weights = weights;
+		trail.count = count;
+		trail.numpts = count;
+		for(int k = 0; k < count; k++) {
+			trail.span += weights[k];
+			trail.updateBounds(x[k], y[k]);
+		}
+		return trail;
+	}
+
+	private void allocate() {
+		pointsX = new double[Math.min(INITIAL_ARRAY_LENGTH, capacity)];
+		pointsY = new double[pointsX.length];
+		weights = new int[pointsX.length];
+	}
+
 	@Override
-	public int hashCode() { //sketchy temporary workaround needed to ensure SimulationStates can recognize other states that are exactly the same
-		return new Integer((int)(numpts + xmin + xmax + ymin + ymax)).hashCode();
+	public synchronized void addPoint(double x, double y) {
+		unshare();
+		if(count == capacity) thin();
+		else if(count == pointsX.length) resize(Math.min(capacity, 2 * pointsX.length));
+		set(count, x, y, 1);
+		count++;
+		span++;
+		added++;
+		trim();
+		numpts = count;
+		updateBounds(x, y);
+	}
+
+	/**
+	 * Drops the oldest points until the trail reaches back no further than <code>length</code>.
+	 */
+	private void trim() {
+		if(length == 0) return;
+		while(count > 2 && span - weights[start] > length) {
+			span -= weights[start];
+			start = (start + 1) % pointsX.length;
+			count--;
+		}
+	}
+
+	/**
+	 * Merges each pair of points in the older half of the trail into the newer point of the pair.
+	 */
+	private void thin() {
+		int pairs = count / 4;
+		//move the kept points up against the newer half, working backwards so nothing is overwritten before it's read:
+		for(int k = 0; k < pairs; k++) {
+			int from = 2 * (pairs - k) - 1;
+			int to = 2 * pairs - 1 - k;
+			set(to, getX(from), getY(from), getWeight(from - 1) + getWeight(from));
+		}
+		start = (start + pairs) % pointsX.length;
+		count -= pairs;
+		numpts = count;
+	}
+
+	private void resize(int length) {
+		double[] newX = new double[length];
+		double[] newY = new double[length];
+		int[] newWeights = new int[length];
+		for(int k = 0; k < count; k++) {
+			newX[k] = getX(k);
+			newY[k] = getY(k);
+			newWeights[k] = getWeight(k);
+		}
+		pointsX = newX;
+		pointsY = newY;
+		weights = newWeights;
+		start = 0;
+		shared = false;
+	}
+
+	private void updateBounds(double x, double y) {
+		xmin = Math.min(xmin, x);
+		xmax = Math.max(xmax, x);
+		ymin = Math.min(ymin, y);
+		ymax = Math.max(ymax, y);
+	}
+
+	/**
+	 * @return the x coordinate of the <code>k</code>th oldest point
+	 */
+	public double getX(int k) {
+		return pointsX[(start + k) % pointsX.length];
+	}
+
+	public double getY(int k) {
+		return pointsY[(start + k) % pointsY.length];
+	}
+
+	/**
+	 * @return how many added points the <code>k</code>th oldest point stands for
+	 */
+	public int getWeight(int k) {
+		return weights[(start + k) % weights.length];
+	}
+
+	private void set(int k, double x, double y, int weight) {
+		int i = (start + k) % pointsX.length;
+		pointsX[i] = x;
+		pointsY[i] = y;
+		weights[i] = weight;
 	}
-	
+
+	@Override
+	public synchronized void clear() {
+		super.clear();
+		if(shared) { //no need to copy points that are about to be dropped
+			allocate();
+			shared = false;
+		}
+		start = 0;
+		count = 0;
+		span = 0;
+		numpts = 0;
+		xmin = Double.MAX_VALUE;
+		xmax = -Double.MAX_VALUE;
+		ymin = Double.MAX_VALUE;
+		ymax = -Double.MAX_VALUE;
+	}
+
+	@Override
+	public synchronized void draw(DrawingPanel panel, Graphics g) {
+		drawFrom(panel, g, 0, closed);
+	}
+
+	/**
+	 * Draws only the segments leading up to the newest <code>points</code> points, for a drawing that already shows the rest.
+	 */
+	public synchronized void drawNewest(DrawingPanel panel, Graphics g, long points) {
+		if(points <= 0) return;
+		drawFrom(panel, g, (int)Math.max(0, count - 1 - points), false);
+	}
+
+	/**
+	 * Draws the part of the trail from its <code>first</code> oldest point on.
+	 */
+	private void drawFrom(DrawingPanel panel, Graphics g, int first, boolean closed) {
+		if(count - first < 2) return;
+
+		int[][] scratch = pixels.get();
+		int needed = count - first + 1;
+		if(scratch[0].length < needed) { //grows by doubling, so a repaint of many trails allocates at most a few times
+			int length = Math.max(needed, 2 * scratch[0].length);
+			scratch[0] = new int[length];
+			scratch[1] = new int[length];
+		}
+		int[] pixX = scratch[0];
+		int[] pixY = scratch[1];
+		int n = 0;
+		for(int k = first; k < count; k++, n++) {
+			pixX[n] = panel.xToPix(getX(k));
+			pixY[n] = panel.yToPix(getY(k));
+		}
+		if(closed) { //join the last point back to the first
+			pixX[n] = pixX[0];
+			pixY[n] = pixY[0];
+			n++;
+		}
+
+		Graphics2D g2 = (Graphics2D)g;
+		g2.setColor(color);
+		Stroke stroke = g2.getStroke();
+		if(drawingStroke != null) g2.setStroke(drawingStroke);
+		g2.drawPolyline(pixX, pixY, n);
+		g2.setStroke(stroke);
+	}
+
+	/**
+	 * @return how many points have ever been added to this trail. Clearing it doesn't change this.
+	 */
+	public synchronized long getAddedCount() {
+		return added;
+	}
+
+	/**
+	 * @return whether any of the trail might be inside the given rectangle, judging by the bounds of every point it has held
+	 */
+	public synchronized boolean intersects(double xLow, double xHigh, double yLow, double yHigh) {
+		return count > 0 && xmin <= xHigh && xmax >= xLow && ymin <= yHigh && ymax >= yLow;
+	}
+
+	/**
+	 * @return roughly how many bytes the points take up
+	 */
+	public int getPointBytes() {
+		return pointsX.length * 20;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Changes the most points the trail will hold, thinning or discarding older points if it already holds more.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		capacity = Math.max(4, capacity);
+		unshare();
+		while(count > capacity) thin();
+		this.capacity = capacity;
+		if(pointsX.length > capacity) resize(capacity);
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Changes how many added points the trail reaches back over, dropping older points if it already reaches further.
+	 */
+	public synchronized void setLength(int length) {
+		this.length = Math.max(0, length);
+		trim(); //only moves start, so shared arrays are left alone
+		numpts = count;
+	}
+
+	/**
+	 * Sets the capacity and length of trails created or loaded from now on.
+	 */
+	public static void setDefaults(int capacity, int length) {
+		defaultCapacity = Math.max(4, capacity);
+		defaultLength = Math.max(0, length);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if(pointsX != null) return;
+
+		//saved before trails were bounded: move the points out of the path, applying the current limits
+		capacity = defaultCapacity;
+		length = defaultLength;
+		allocate();
+		GeneralPath path = generalPath;
+		generalPath = new GeneralPath();
+		xmin = Double.MAX_VALUE;
+		xmax = -Double.MAX_VALUE;
+		ymin = Double.MAX_VALUE;
+		ymax = -Double.MAX_VALUE;
+		numpts = 0;
+		if(path == null) return;
+
+		double[] coords = new double[6];
+		for(PathIterator it = path.getPathIterator(null); !it.isDone(); it.next()) {
+			int type = it.currentSegment(coords);
+			if(type == PathIterator.SEG_MOVETO || type == PathIterator.SEG_LINETO) addPoint(coords[0], coords[1]);
+		}
+	}
+
+	/**
+	 * Consistent with <code>sameAs</code>: hashes the number of points, how far back they reach and the newest one.
+	 */
+	@Override
+	public synchronized int hashCode() {
+		if(count == 0 || pointsX == null) return 31 * (31 * count + (int)(span ^ (span >>> 32))) + color.hashCode();
+		int newest = (start + count - 1) % pointsX.length;
+		return hash(count, span, pointsX[newest], pointsY[newest], color);
+	}
+
+	/**
+	 * @return the <code>hashCode</code> of a trail of <code>count</code> points reaching back over <code>span</code> added points,
+	 * the newest at (newestX, newestY)
+	 */
+	static int hash(int count, long span, double newestX, double newestY, Color color) {
+		int h = 31 * count + (int)(span ^ (span >>> 32));
+		long bits = Double.doubleToLongBits(newestX) * 31 + Double.doubleToLongBits(newestY);
+		h = 31 * h + (int)(bits ^ (bits >>> 32));
+		return 31 * h + color.hashCode();
+	}
+
+	/**
+	 * @return whether this trail holds nothing but (x, y) in <code>color</code>, as a trail just created for a particle there does
+	 */
+	public synchronized boolean isNewAt(double x, double y, Color color) {
+		return count == 1 && span == 1 && pointsX[start] == x && pointsY[start] == y && this.color.equals(color);
+	}
+
 }
@@ -1,25 +1,29 @@
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class SimulationState implements Serializable {
 
 	private static final long serialVersionUID = 1L;
+	private static final long FINGERPRINT_SEED = 0xCBF29CE484222325L;
 	
 	private Particle[] particles;
 	private double timeElapsed;
 	private double timeInterval;
 	private double gravConstant;
 	private boolean elasticCollisions;
+	private transient long fingerprint; //worked out the first time it's needed, since the particles never change
+	private transient boolean fingerprinted;
 	
 	public SimulationState(List<Particle> particles, double timeElapsed, double timeInterval, double gravConstant, boolean elasticCollisions) {
 		this.particles = new Particle[particles.size()];
 		for(int i = 0; i < particles.size(); i++) {
-			this.particles[i] = particles.get(i).deepCopy();
+			this.particles[i] = particles.get(i).copy();
 		}
 		this.timeElapsed = timeElapsed;
 		this.timeInterval = timeInterval;
@@ -27,33 +31,63 @@ public class SimulationState implements Serializable {
 		this.elasticCollisions = elasticCollisions;
 	}
 	
-	public void save(String filename) {
+	/**
+	 * Creates a state that holds <code>particles</code> themselves rather than copies of them,
+	 * for callers that already hold copies no one else will change.
+	 */
+	SimulationState(Particle[] particles, double timeElapsed, double timeInterval, double gravConstant, boolean elasticCollisions) {
+		this.particles = particles;
+		this.timeElapsed = timeElapsed;
+		this.timeInterval = timeInterval;
+		this.gravConstant = gravConstant;
+		this.elasticCollisions = elasticCollisions;
+	}
+	
+	public void save(String filename) throws IOException {
 		save(new File(filename));
 	}
 	
-	public void save(File file) {
-		FileOutputStream fos;
-		ObjectOutputStream out;
+	/**
+	 * Saves this state, trails included, in the binary format described by <code>OrbitalFile</code>.
+	 */
+	public void save(File file) throws IOException {
+		save(file, true);
+	}
+	
+	public void save(File file, boolean includeTrails) throws IOException {
+		OrbitalFile.write(this, file, includeTrails);
+	}
+	
+	/**
+	 * Reads a state saved in either the current binary format or the Java serialization used by older versions.
+	 */
+	public static SimulationState load(File file) throws IOException, ClassNotFoundException {
+		if(OrbitalFile.isOrbitalFile(file)) return OrbitalFile.read(file);
+		
+		ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
 		try {
-			fos = new FileOutputStream(file);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(this);
-			out.close();
-			fos.close();
+			return (SimulationState)in.readObject();
 		}
-		catch(IOException e) {
-			e.printStackTrace();
+		finally {
+			in.close();
 		}
 	}
 	
 	public List<Particle> getParticles() {
 		List<Particle> res = new ArrayList<Particle>();
 		for(Particle p : particles) {
-			res.add(p.deepCopy());
+			res.add(p.copy());
 		}
 		return res;
 	}
 	
+	/**
+	 * @return the particles held by this state, which must not be changed
+	 */
+	Particle[] getParticleArray() {
+		return particles;
+	}
+	
 	public double getTimeElapsed() {
 		return timeElapsed;
 	}
@@ -70,10 +104,52 @@ public class SimulationState implements Serializable {
 		return elasticCollisions;
 	}
 	
+	/**
+	 * @return a hash of everything in this state
+	 */
+	public long getFingerprint() {
+		if(!fingerprinted) {
+			fingerprint = fingerprint(Arrays.asList(particles), timeElapsed, timeInterval, gravConstant, elasticCollisions);
+			fingerprinted = true;
+		}
+		return fingerprint;
+	}
+	
+	/**
+	 * @return a 64-bit hash of the given particles and settings, built from the bits of each value rather than from strings
+	 */
+	static long fingerprint(List<Particle> particles, double timeElapsed, double timeInterval, double gravConstant, boolean elasticCollisions) {
+		long h = mix(FINGERPRINT_SEED, particles.size());
+		for(Particle p : particles) {
+			h = mix(h, p.fingerprint());
+		}
+		h = mix(h, Double.doubleToLongBits(timeElapsed));
+		h = mix(h, Double.doubleToLongBits(timeInterval));
+		h = mix(h, Double.doubleToLongBits(gravConstant));
+		return mix(h, elasticCollisions ? 1 : 0);
+	}
+	
+	/**
+	 * @return <code>h</code> with <code>bits</code> folded into it
+	 */
+	static long mix(long h, long bits) {
+		h = (h ^ bits) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+	
 	@Override
 	public boolean equals(Object o) {
+		if(o == this) return true;
+		if(!(o instanceof SimulationState)) return false;
 		SimulationState other = (SimulationState)o;
-		return this.hashCode() == other.hashCode();
+		if(getFingerprint() != other.getFingerprint()) return false; //almost always settles it
+		
+		if(timeElapsed != other.timeElapsed || timeInterval != other.timeInterval || gravConstant != other.gravConstant
+				|| elasticCollisions != other.elasticCollisions || particles.length != other.particles.length) return false;
+		for(int i = 0; i < particles.length; i++) {
+			if(!particles[i].sameStateAs(other.particles[i])) return false;
+		}
+		return true;
 	}
 	
 	public String toString() {
@@ -91,7 +167,8 @@ public class SimulationState implements Serializable {
 	
 	@Override
 	public int hashCode() {
-		return this.toString().hashCode();
+		long f = getFingerprint();
+		return (int)(f ^ (f >>> 32));
 	}
 	
 }
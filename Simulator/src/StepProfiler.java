@@ -0,0 +1,440 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * StepProfiler
+ * Measures where the time in each step of an <code>OrbitalEngine</code> goes. It keeps a latency
+ * histogram for the whole step and for each of its phases, along with the step rate, the
+ * allocation rate and the particle count. Every <code>driftInterval</code> steps it also measures
+ * how far the total energy and momentum have drifted. Energy takes O(n^2) time, so it is only
+ * measured for up to <code>MAX_ENERGY_PARTICLES</code> particles, and the measurement is counted
+ * in the step's <code>OUTPUT</code> time rather than hidden.
+ * <p>
+ * Timing a step costs a handful of <code>System.nanoTime</code> calls and array increments, and
+ * nothing is allocated. Each phase has one writer at a time: the stepping thread for the phases of
+ * a step, the animation thread for <code>SNAPSHOTS</code>, and whichever thread paints, under the
+ * <code>ParticleLayer</code>'s lock, for <code>PAINTING</code>. Readers such as JMX and the overlay
+ * read without locking, so a reading taken in the middle of a step may be off by one sample.
+ * <p>
+ * Histograms have one bucket per power of two nanoseconds, so percentiles are estimates that are
+ * accurate to within a factor of two (less after interpolating within the bucket).
+ * @author Russell Kaplan
+ *
+ */
+public class StepProfiler implements StepProfilerMBean {
+
+	final public static int STEP = 0; //the whole step
+	final public static int FORCES = 1;
+	final public static int INTEGRATION = 2; //not counting the forces computed during it
+	final public static int RENDERING = 3; //moving the drawn particles and trails, when the engine does it in each step
+	final public static int COLLISIONS = 4;
+	final public static int MERGES = 5; //resolving the collisions found
+	final public static int OUTPUT = 6; //recording and autosaving
+	final public static int SNAPSHOTS = 7; //moving the drawn particles to a snapshot from the physics thread, once a frame
+	final public static int PAINTING = 8; //drawing the particles and trails, once a frame
+	final public static String[] PHASE_NAMES = {"Step", "Forces", "Integration", "Rendering", "Collisions", "Merges", "Output", "Snapshots", "Painting"};
+
+	final public static String OBJECT_NAME = "OrbitalSimulation:type=StepProfiler"; //as shown in JConsole
+	final public static int DEFAULT_DRIFT_INTERVAL = 100;
+	final public static int MAX_ENERGY_PARTICLES = 2000; //potential energy is O(n^2), so it isn't measured beyond this
+	final private static long RATE_WINDOW_NANOS = 1000000000L;
+
+	private Histogram[] histograms = new Histogram[PHASE_NAMES.length];
+
+	//the step in progress:
+	private long stepStart;
+	private long lapStart;
+	private long forceStart;
+	private long forceNanos;
+
+	//rates, updated about once a second:
+	private long windowStart;
+	private long windowSteps;
+	private long windowAllocated;
+	private long windowThread = -1;
+	private volatile double stepsPerSecond;
+	private volatile double allocationRate = Double.NaN;
+	private int particleCount;
+	private long steps;
+	private long firstStepStart;
+	private long lastStepEnd;
+	private volatile boolean ratesMeasured; //whether a whole window has passed, so stepsPerSecond means something
+	private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	//conservation:
+	private int driftInterval;
+	private int baselineStructure = -1;
+	private double baselineEnergy;
+	private double baselineMomentumX;
+	private double baselineMomentumY;
+	private double momentumScale;
+	private volatile double energyDrift = Double.NaN;
+	private volatile double momentumDrift = Double.NaN;
+	private volatile long driftSince;
+
+	public StepProfiler() {
+		this(DEFAULT_DRIFT_INTERVAL);
+	}
+
+	/**
+	 * @param driftInterval steps between measurements of energy and momentum drift, or 0 for none
+	 */
+	public StepProfiler(int driftInterval) {
+		for(int k = 0; k < histograms.length; k++) {
+			histograms[k] = new Histogram();
+		}
+		setDriftInterval(driftInterval);
+	}
+
+	/**
+	 * Marks the beginning of a step. Called by the engine on the stepping thread.
+	 */
+	public void stepStarted() {
+		stepStart = lapStart = System.nanoTime();
+		if(firstStepStart == 0) firstStepStart = stepStart;
+		forceNanos = 0;
+	}
+
+	/**
+	 * Records the time since the last lap (or the start of the step) as <code>phase</code>.
+	 * Force calculations timed since then are recorded as <code>FORCES</code> instead.
+	 */
+	public void lap(int phase) {
+		long now = System.nanoTime();
+		if(forceNanos > 0) {
+			histograms[FORCES].record(forceNanos);
+			histograms[phase].record(now - lapStart - forceNanos);
+			forceNanos = 0;
+		}
+		else histograms[phase].record(now - lapStart);
+		lapStart = now;
+	}
+
+	/**
+	 * Marks the start of a force calculation inside the current phase. Called by <code>PhysicsKernel</code>.
+	 */
+	public void forcesStarted() {
+		forceStart = System.nanoTime();
+	}
+
+	public void forcesFinished() {
+		forceNanos += System.nanoTime() - forceStart;
+	}
+
+	/**
+	 * Records a phase timed outside the engine's step: <code>SNAPSHOTS</code> or <code>PAINTING</code>.
+	 */
+	public void record(int phase, long nanos) {
+		histograms[phase].record(nanos);
+	}
+
+	/**
+	 * Marks the end of a step: measures drift if it's due, records the time since the last lap (drift
+	 * included) as <code>OUTPUT</code>, the whole step, and the particle count, and updates the rates.
+	 */
+	public void stepFinished(OrbitalEngine engine) {
+		if(driftInterval > 0 && engine.getStepCount() % driftInterval == 0) measureDrift(engine);
+		lap(OUTPUT);
+		long now = lapStart;
+		histograms[STEP].record(now - stepStart);
+		particleCount = engine.getStore().size;
+		steps++;
+		lastStepEnd = now;
+
+		windowSteps++;
+		if(now - windowStart >= RATE_WINDOW_NANOS) updateRates(now);
+	}
+
+	private void updateRates(long now) {
+		long thread = Thread.currentThread().getId();
+		long allocated = allocatedBytes(thread);
+		if(thread == windowThread && windowStart != 0) {
+			double seconds = (now - windowStart) / 1E9;
+			stepsPerSecond = windowSteps / seconds;
+			ratesMeasured = true;
+			allocationRate = (allocated < 0) ? Double.NaN : (allocated - windowAllocated) / seconds;
+		}
+		windowThread = thread; //the stepping thread changes when physics moves on or off its own thread
+		windowStart = now;
+		windowSteps = 0;
+		windowAllocated = allocated;
+	}
+
+	/**
+	 * @return the bytes allocated so far by the given thread, or -1 if the JVM can't say
+	 */
+	private long allocatedBytes(long thread) {
+		if(!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)threads;
+		if(!sun.isThreadAllocatedMemorySupported()) return -1;
+		return sun.getThreadAllocatedBytes(thread);
+	}
+
+	/**
+	 * Compares the total energy and momentum against those measured when the particles last changed
+	 * (were added, removed, merged or loaded), since those changes legitimately change the totals.
+	 */
+	private void measureDrift(OrbitalEngine engine) {
+		ParticleStore store = engine.getStore();
+		int n = store.size;
+		double px = 0, py = 0, scale = 0;
+		for(int i = 0; i < n; i++) {
+			px += store.mass[i] * store.vx[i];
+			py += store.mass[i] * store.vy[i];
+			scale += store.mass[i] * Math.sqrt(store.vx[i] * store.vx[i] + store.vy[i] * store.vy[i]);
+		}
+		double energy = (n <= MAX_ENERGY_PARTICLES) ? totalEnergy(store, engine.getGravConstant()) : Double.NaN;
+
+		if(engine.getStructureVersion() != baselineStructure) {
+			baselineStructure = engine.getStructureVersion();
+			baselineEnergy = energy;
+			baselineMomentumX = px;
+			baselineMomentumY = py;
+			momentumScale = scale;
+			driftSince = engine.getStepCount();
+		}
+		energyDrift = (energy - baselineEnergy) / Math.abs(baselineEnergy);
+		//relative to the total magnitude of momentum, since the net momentum is often zero:
+		momentumDrift = (momentumScale == 0) ? 0 : Math.hypot(px - baselineMomentumX, py - baselineMomentumY) / momentumScale;
+	}
+
+	/**
+	 * @return the kinetic plus gravitational potential energy of the particles in <code>store</code>
+	 */
+	public static double totalEnergy(ParticleStore store, double gravConstant) {
+		double[] x = store.x;
+		double[] y = store.y;
+		double[] mass = store.mass;
+		int n = store.size;
+		double kinetic = 0;
+		double potential = 0;
+		for(int i = 0; i < n; i++) {
+			kinetic += 0.5 * mass[i] * (store.vx[i] * store.vx[i] + store.vy[i] * store.vy[i]);
+			double xi = x[i];
+			double yi = y[i];
+			double sum = 0;
+			for(int j = i + 1; j < n; j++) {
+				double dx = x[j] - xi;
+				double dy = y[j] - yi;
+				sum += mass[j] / Math.sqrt(dx*dx + dy*dy);
+			}
+			potential -= mass[i] * sum;
+		}
+		return kinetic + gravConstant * potential;
+	}
+
+	/**
+	 * Publishes this profiler to the platform MBean server as <code>OBJECT_NAME</code>, replacing any profiler registered before it.
+	 */
+	public void registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if(server.isRegistered(name)) server.unregisterMBean(name);
+		server.registerMBean(this, name);
+	}
+
+	public Histogram getHistogram(int phase) {
+		return histograms[phase];
+	}
+
+	public int getDriftInterval() {
+		return driftInterval;
+	}
+
+	public void setDriftInterval(int driftInterval) {
+		this.driftInterval = Math.max(0, driftInterval);
+	}
+
+	/**
+	 * @return a multi-line table of the latencies of every phase that has been timed, the rates, and the drift
+	 */
+	public String summary() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("%d particles, %.0f steps/s, %s allocated/s%n", particleCount, getStepsPerSecond(), formatBytes(allocationRate)));
+		for(int k = 0; k < histograms.length; k++) {
+			Histogram h = histograms[k];
+			if(h.getCount() == 0 && k != STEP) continue; //such as painting, when there's no display
+			s.append(String.format("%-12s mean %9s  p50 %9s  p99 %9s  max %9s%n", PHASE_NAMES[k],
+					formatNanos(h.getMean()), formatNanos(h.getPercentile(0.5)), formatNanos(h.getPercentile(0.99)), formatNanos(h.getMax())));
+		}
+		s.append(String.format("Energy drift %.3g, momentum drift %.3g since step %d", energyDrift, momentumDrift, driftSince));
+		return s.toString();
+	}
+
+	static String formatNanos(double nanos) {
+		if(nanos < 1E3) return String.format("%.0f ns", nanos);
+		if(nanos < 1E6) return String.format("%.1f us", nanos / 1E3);
+		if(nanos < 1E9) return String.format("%.1f ms", nanos / 1E6);
+		return String.format("%.2f s", nanos / 1E9);
+	}
+
+	static String formatBytes(double bytes) {
+		if(Double.isNaN(bytes)) return "n/a";
+		if(bytes < 1024) return String.format("%.0f B", bytes);
+		if(bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024);
+		return String.format("%.1f MB", bytes / (1024 * 1024));
+	}
+
+	//StepProfilerMBean:
+
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return the step rate over the last second or so, or over every step so far if they took less than that
+	 */
+	public double getStepsPerSecond() {
+		if(ratesMeasured) return stepsPerSecond;
+		long elapsed = lastStepEnd - firstStepStart;
+		return (steps == 0 || elapsed <= 0) ? 0 : steps / (elapsed / 1E9);
+	}
+
+	public double getAllocationBytesPerSecond() {
+		return allocationRate;
+	}
+
+	public int getParticleCount() {
+		return particleCount;
+	}
+
+	public double getStepMeanMicros() {
+		return histograms[STEP].getMean() / 1E3;
+	}
+
+	public double getStepP50Micros() {
+		return histograms[STEP].getPercentile(0.5) / 1E3;
+	}
+
+	public double getStepP99Micros() {
+		return histograms[STEP].getPercentile(0.99) / 1E3;
+	}
+
+	public double getStepMaxMicros() {
+		return histograms[STEP].getMax() / 1E3;
+	}
+
+	public double getForcesMeanMicros() {
+		return histograms[FORCES].getMean() / 1E3;
+	}
+
+	public double getIntegrationMeanMicros() {
+		return histograms[INTEGRATION].getMean() / 1E3;
+	}
+
+	public double getRenderingMeanMicros() {
+		return histograms[RENDERING].getMean() / 1E3;
+	}
+
+	public double getCollisionsMeanMicros() {
+		return histograms[COLLISIONS].getMean() / 1E3;
+	}
+
+	public double getMergesMeanMicros() {
+		return histograms[MERGES].getMean() / 1E3;
+	}
+
+	public double getOutputMeanMicros() {
+		return histograms[OUTPUT].getMean() / 1E3;
+	}
+
+	public double getSnapshotsMeanMicros() {
+		return histograms[SNAPSHOTS].getMean() / 1E3;
+	}
+
+	public double getPaintingMeanMicros() {
+		return histograms[PAINTING].getMean() / 1E3;
+	}
+
+	public double getEnergyDrift() {
+		return energyDrift;
+	}
+
+	public double getMomentumDrift() {
+		return momentumDrift;
+	}
+
+	public String getSummary() {
+		return summary();
+	}
+
+	/**
+	 * Clears every histogram, and measures drift from the next measurement on.
+	 */
+	public void reset() {
+		for(Histogram h : histograms) {
+			h.clear();
+		}
+		baselineStructure = -1;
+		energyDrift = momentumDrift = Double.NaN;
+	}
+
+	/**
+	 * Counts of durations in buckets of powers of two nanoseconds: bucket b holds durations
+	 * from 2^(b-1) (inclusive) to 2^b (exclusive), and bucket 0 holds durations of 0.
+	 */
+	public static class Histogram {
+
+		private long[] buckets = new long[64];
+		private long count;
+		private long total;
+		private long max;
+
+		void record(long nanos) {
+			if(nanos < 0) nanos = 0; //nanoTime may step backwards on some systems
+			buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+			total += nanos;
+			if(nanos > max) max = nanos;
+			count++;
+		}
+
+		void clear() {
+			count = 0;
+			total = 0;
+			max = 0;
+			for(int b = 0; b < buckets.length; b++) {
+				buckets[b] = 0;
+			}
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			long n = count;
+			return (n == 0) ? 0 : total / (double)n;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return an estimate of the duration that <code>quantile</code> of the recorded durations are at most, interpolated within its bucket
+		 */
+		public double getPercentile(double quantile) {
+			long n = count;
+			if(n == 0) return 0;
+			double rank = quantile * n;
+			long seen = 0;
+			for(int b = 0; b < buckets.length; b++) {
+				long inBucket = buckets[b];
+				if(inBucket > 0 && seen + inBucket >= rank) {
+					if(b == 0) return 0;
+					double low = 1L << (b - 1);
+					double high = Math.min(2 * low, max + 1);
+					return low + (high - low) * (rank - seen) / inBucket;
+				}
+				seen += inBucket;
+			}
+			return max;
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+/**
+ * StepProfilerMBean
+ * The attributes and operations a <code>StepProfiler</code> exposes over JMX, so that a running
+ * simulation can be watched from JConsole or VisualVM. Times are in microseconds.
+ * @author Russell Kaplan
+ *
+ */
+public interface StepProfilerMBean {
+
+	public long getSteps();
+
+	public double getStepsPerSecond();
+
+	/**
+	 * @return bytes allocated per second by the stepping thread, or NaN if the JVM can't measure it
+	 */
+	public double getAllocationBytesPerSecond();
+
+	public int getParticleCount();
+
+	public double getStepMeanMicros();
+
+	public double getStepP50Micros();
+
+	public double getStepP99Micros();
+
+	public double getStepMaxMicros();
+
+	public double getForcesMeanMicros();
+
+	public double getIntegrationMeanMicros();
+
+	public double getRenderingMeanMicros();
+
+	public double getCollisionsMeanMicros();
+
+	public double getMergesMeanMicros();
+
+	public double getOutputMeanMicros();
+
+	public double getSnapshotsMeanMicros();
+
+	public double getPaintingMeanMicros();
+
+	/**
+	 * @return the change in total energy, relative to its magnitude, since the particles last changed
+	 */
+	public double getEnergyDrift();
+
+	/**
+	 * @return the change in total momentum, relative to the sum of every particle's momentum magnitude, since the particles last changed
+	 */
+	public double getMomentumDrift();
+
+	public String getSummary();
+
+	public void reset();
+
+}
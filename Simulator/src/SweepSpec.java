@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * SweepSpec
+ * Describes the members of an ensemble run by <code>EnsembleRunner</code>: one member for every
+ * combination of the values given for each varied parameter, repeated <code>repeats</code> times
+ * with different random velocity perturbations. Parameters that aren't varied keep the value
+ * saved in the base state.
+ * <p>
+ * Each member's perturbation is seeded from the sweep's seed and the member's index, so any member
+ * can be rerun on its own and give the same result.
+ * @author Russell Kaplan
+ *
+ */
+public class SweepSpec {
+
+	private double[] timeIntervals; //null to keep the base state's
+	private double[] gravConstants;
+	private boolean[] collisionModes; //true for elastic
+	private double[] perturbations = {0};
+	private int repeats = 1;
+	private long seed = 1;
+
+	/**
+	 * Parses a list of values: either comma-separated (<code>0.01,0.005,0.001</code>) or
+	 * <code>FROM:TO:COUNT</code> for <code>COUNT</code> evenly spaced values from <code>FROM</code> to <code>TO</code> inclusive.
+	 * @throws NumberFormatException if it is neither
+	 */
+	public static double[] parseValues(String spec) {
+		String[] range = spec.split(":");
+		if(range.length == 3) {
+			double from = Double.parseDouble(range[0]);
+			double to = Double.parseDouble(range[1]);
+			int count = Integer.parseInt(range[2]);
+			if(count < 1) throw new NumberFormatException("a range needs at least one value: " + spec);
+			double[] values = new double[count];
+			for(int k = 0; k < count; k++) {
+				values[k] = (count == 1) ? from : from + (to - from) * k / (count - 1);
+			}
+			return values;
+		}
+		if(range.length != 1) throw new NumberFormatException("expected a list or FROM:TO:COUNT: " + spec);
+
+		String[] parts = spec.split(",");
+		double[] values = new double[parts.length];
+		for(int k = 0; k < parts.length; k++) {
+			values[k] = Double.parseDouble(parts[k].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Parses a comma-separated list of collision modes, each <code>elastic</code> or <code>inelastic</code>.
+	 * @throws IllegalArgumentException for anything else
+	 */
+	public static boolean[] parseCollisionModes(String spec) {
+		String[] parts = spec.split(",");
+		boolean[] modes = new boolean[parts.length];
+		for(int k = 0; k < parts.length; k++) {
+			String mode = parts[k].trim();
+			if(mode.equalsIgnoreCase("elastic")) modes[k] = true;
+			else if(mode.equalsIgnoreCase("inelastic")) modes[k] = false;
+			else throw new IllegalArgumentException("unknown collision mode " + mode);
+		}
+		return modes;
+	}
+
+	/**
+	 * @return every member of the ensemble, numbered from 0
+	 */
+	public List<Member> members(SimulationState base) {
+		double[] dts = (timeIntervals != null) ? timeIntervals : new double[] {base.getTimeInterval()};
+		double[] gs = (gravConstants != null) ? gravConstants : new double[] {base.getGravConstant()};
+		boolean[] modes = (collisionModes != null) ? collisionModes : new boolean[] {base.isElasticCollisions()};
+
+		List<Member> members = new ArrayList<Member>();
+		for(double dt : dts) {
+			for(double g : gs) {
+				for(boolean elastic : modes) {
+					for(double perturbation : perturbations) {
+						for(int r = 0; r < repeats; r++) {
+							int index = members.size();
+							members.add(new Member(index, dt, g, elastic, perturbation, seed * 1000003 + index));
+						}
+					}
+				}
+			}
+		}
+		return members;
+	}
+
+	public void setTimeIntervals(double[] timeIntervals) {
+		this.timeIntervals = timeIntervals;
+	}
+
+	public void setGravConstants(double[] gravConstants) {
+		this.gravConstants = gravConstants;
+	}
+
+	public void setCollisionModes(boolean[] collisionModes) {
+		this.collisionModes = collisionModes;
+	}
+
+	/**
+	 * @param perturbations sizes of the random changes to each particle's initial velocity, relative to its speed
+	 */
+	public void setPerturbations(double[] perturbations) {
+		this.perturbations = perturbations;
+	}
+
+	public void setRepeats(int repeats) {
+		this.repeats = Math.max(1, repeats);
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * One variant of the base state.
+	 */
+	public static class Member {
+
+		final public int index;
+		final public double timeInterval;
+		final public double gravConstant;
+		final public boolean elasticCollisions;
+		final public double perturbation;
+		final public long seed;
+
+		Member(int index, double timeInterval, double gravConstant, boolean elasticCollisions, double perturbation, long seed) {
+			this.index = index;
+			this.timeInterval = timeInterval;
+			this.gravConstant = gravConstant;
+			this.elasticCollisions = elasticCollisions;
+			this.perturbation = perturbation;
+			this.seed = seed;
+		}
+
+		/**
+		 * @return a copy of <code>base</code> with this member's settings, and every velocity component changed by
+		 * a normally distributed amount with standard deviation <code>perturbation</code> times the particle's speed
+		 */
+		public SimulationState createState(SimulationState base) {
+			List<Particle> particles = base.getParticles();
+			if(perturbation != 0) {
+				Random random = new Random(seed);
+				for(Particle p : particles) {
+					double speed = Math.hypot(p.getXVel(), p.getYVel());
+					p.setXVel(p.getXVel() + perturbation * speed * random.nextGaussian());
+					p.setYVel(p.getYVel() + perturbation * speed * random.nextGaussian());
+				}
+			}
+			return new SimulationState(particles, base.getTimeElapsed(), timeInterval, gravConstant, elasticCollisions);
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.opensourcephysics.display.DrawingPanel;
+
+/**
+ * TrailRaster
+ * Keeps the particles' trails drawn in an image the size of the panel, so each repaint only adds
+ * the segments leading to points added since the last one and then copies the image to the screen.
+ * A repaint then takes the same time however long the trails are.
+ * <p>
+ * The image is redrawn from the trails' points whenever the panel is resized, panned or zoomed,
+ * and when <code>invalidate</code> is called (as when the simulation is undone or loaded). In
+ * between, it keeps everything drawn since, however short the trails are set to be; old paths
+ * disappear instead by fading, if a fade is set.
+ * @author Russell Kaplan
+ *
+ */
+public class TrailRaster {
+
+	final private static double MIN_FADE_STEP = 1.0 / 16; //smaller fades are saved up, since alpha only has 8 bits to lose them in
+
+	private BufferedImage image;
+	private boolean valid;
+	private double xMin, xMax, yMin, yMax; //the panel's view when the image was drawn
+
+	private Particle[] particles = new Particle[0];
+	private long[] drawnAdded = new long[0]; //each trail's added count when it was last drawn, or -1 if never
+	private double fade;
+	private double pendingFade;
+
+	/**
+	 * Replaces the particles whose trails are drawn. Trails already drawn stay in the image, and only
+	 * the new particles' trails are drawn in full.
+	 */
+	public void setParticles(Particle[] particles) {
+		Map<Particle, Long> previous = new IdentityHashMap<Particle, Long>(2 * this.particles.length);
+		for(int i = 0; i < this.particles.length; i++) {
+			previous.put(this.particles[i], drawnAdded[i]);
+		}
+		long[] added = new long[particles.length];
+		for(int i = 0; i < particles.length; i++) {
+			Long drawn = previous.get(particles[i]);
+			added[i] = (drawn != null) ? drawn : -1;
+		}
+		this.particles = particles;
+		this.drawnAdded = added;
+	}
+
+	/**
+	 * Makes the next repaint redraw every trail from scratch.
+	 */
+	public void invalidate() {
+		valid = false;
+	}
+
+	public double getFade() {
+		return fade;
+	}
+
+	/**
+	 * @param fade fraction of its remaining opacity the drawing loses each repaint, from 0 (trails never fade) to 1
+	 */
+	public void setFade(double fade) {
+		this.fade = Math.max(0, Math.min(1, fade));
+	}
+
+	public void draw(DrawingPanel panel, Graphics g) {
+		int width = panel.getWidth();
+		int height = panel.getHeight();
+		if(image == null || image.getWidth() != width || image.getHeight() != height) {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			valid = false;
+		}
+		if(panel.getXMin() != xMin || panel.getXMax() != xMax || panel.getYMin() != yMin || panel.getYMax() != yMax) valid = false;
+
+		Graphics2D ig = image.createGraphics();
+		try {
+			if(!valid) redraw(panel, ig);
+			else {
+				fade(ig);
+				for(int i = 0; i < particles.length; i++) {
+					SerializableTrail trail = particles[i].getTrail();
+					long added = trail.getAddedCount();
+					if(drawnAdded[i] < 0) trail.draw(panel, ig);
+					else trail.drawNewest(panel, ig, added - drawnAdded[i]);
+					drawnAdded[i] = added;
+				}
+			}
+		}
+		finally {
+			ig.dispose();
+		}
+		g.drawImage(image, 0, 0, null);
+	}
+
+	private void redraw(DrawingPanel panel, Graphics2D ig) {
+		Composite composite = ig.getComposite();
+		ig.setComposite(AlphaComposite.Clear);
+		ig.fillRect(0, 0, image.getWidth(), image.getHeight());
+		ig.setComposite(composite);
+
+		xMin = panel.getXMin();
+		xMax = panel.getXMax();
+		yMin = panel.getYMin();
+		yMax = panel.getYMax();
+		double xLow = Math.min(xMin, xMax), xHigh = Math.max(xMin, xMax);
+		double yLow = Math.min(yMin, yMax), yHigh = Math.max(yMin, yMax);
+		for(int i = 0; i < particles.length; i++) {
+			SerializableTrail trail = particles[i].getTrail();
+			drawnAdded[i] = trail.getAddedCount();
+			if(trail.intersects(xLow, xHigh, yLow, yHigh)) trail.draw(panel, ig);
+		}
+		pendingFade = 0;
+		valid = true;
+	}
+
+	/**
+	 * Takes away this repaint's share of the drawing's opacity.
+	 */
+	private void fade(Graphics2D ig) {
+		if(fade == 0) return;
+		pendingFade = 1 - (1 - pendingFade) * (1 - fade);
+		if(pendingFade < MIN_FADE_STEP) return;
+
+		Composite composite = ig.getComposite();
+		ig.setComposite(AlphaComposite.getInstance(AlphaComposite.DST_OUT, (float)pendingFade));
+		ig.fillRect(0, 0, image.getWidth(), image.getHeight());
+		ig.setComposite(composite);
+		pendingFade = 0;
+	}
+
+}
@@ -0,0 +1,297 @@
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TrajectoryReader
+ * Random access to the frames of a file written by <code>TrajectoryRecorder</code>.
+ * <p>
+ * Frames vary in size as particles merge, so their offsets can't be computed. Opening a file scans
+ * the frame headers once through a memory-mapped window and keeps the time and offset of every
+ * <code>INDEX_STRIDE</code>th frame. Finding the frame at a given time is then a binary search of
+ * that index followed by a scan of at most one stride of headers, and the offsets of the stride
+ * last scanned are kept so that stepping through neighboring frames in either direction doesn't
+ * scan again.
+ * <p>
+ * The same scan reads how every particle in the recording is drawn, from the frames where each id
+ * first appears, so they are known wherever playback starts.
+ * @author Russell Kaplan
+ *
+ */
+public class TrajectoryReader {
+
+	final public static int INDEX_STRIDE = 64;
+	final private static byte[] MAGIC = {'O', 'R', 'B', 'R'};
+	final private static long WINDOW_BYTES = 64 << 20;
+
+	private File file;
+	private FileChannel channel;
+	private long fileSize;
+	private int frameCount;
+
+	//every INDEX_STRIDE-th frame:
+	private double[] indexTimes;
+	private long[] indexOffsets;
+
+	//offsets of the frames in the most recently scanned stride:
+	private int blockStart = -1;
+	private long[] blockOffsets = new long[INDEX_STRIDE];
+
+	private MappedByteBuffer window; //used while scanning headers
+	private long windowStart;
+	private ByteBuffer frameBuffer = ByteBuffer.allocate(0);
+	private Map<Long, Appearance> appearances = new HashMap<Long, Appearance>();
+
+	public TrajectoryReader(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.fileSize = channel.size();
+
+		ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(header, 0);
+		for(int k = 0; k < MAGIC.length; k++) {
+			if(header.get(k) != MAGIC[k]) {
+				channel.close();
+				throw new IOException(file + " is not a trajectory file");
+			}
+		}
+		if(header.getShort(4) > TrajectoryRecorder.VERSION) {
+			channel.close();
+			throw new IOException(file + " was recorded by a newer version");
+		}
+
+		buildIndex();
+	}
+
+	/**
+	 * Scans every frame header, counting frames and recording the time and offset of every <code>INDEX_STRIDE</code>th.
+	 * Recordings that weren't closed properly end at the first missing or incomplete frame.
+	 */
+	private void buildIndex() throws IOException {
+		indexTimes = new double[16];
+		indexOffsets = new long[16];
+		long offset = TrajectoryRecorder.HEADER_BYTES;
+		int frames = 0;
+		while(offset + TrajectoryRecorder.FRAME_HEADER_BYTES <= fileSize) {
+			ByteBuffer w = windowAt(offset);
+			int at = (int)(offset - windowStart);
+			int bytes = w.getInt(at);
+			if(bytes < TrajectoryRecorder.FRAME_HEADER_BYTES || offset + bytes > fileSize) break;
+
+			if(frames % INDEX_STRIDE == 0) {
+				int entry = frames / INDEX_STRIDE;
+				if(entry == indexTimes.length) {
+					indexTimes = Arrays.copyOf(indexTimes, 2 * entry);
+					indexOffsets = Arrays.copyOf(indexOffsets, 2 * entry);
+				}
+				indexTimes[entry] = w.getDouble(at + 16);
+				indexOffsets[entry] = offset;
+			}
+			long table = TrajectoryRecorder.FRAME_HEADER_BYTES + 40L * w.getInt(at + 4);
+			if(bytes - table > 4) readAppearances(offset + table, (int)(bytes - table)); //not just an empty table, or none at all before version 2
+			frames++;
+			offset += bytes;
+		}
+		frameCount = frames;
+		window = null; //only needed for scanning
+	}
+
+	/**
+	 * Reads the table of particles appearing for the first time, <code>length</code> bytes starting at <code>offset</code>.
+	 */
+	private void readAppearances(long offset, int length) throws IOException {
+		ByteBuffer table = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(table, offset);
+		table.flip();
+		int m = table.getInt();
+		for(int k = 0; k < m; k++) {
+			long id = table.getLong();
+			int color = table.getInt();
+			int pixRadius = table.getInt();
+			byte[] name = new byte[table.getInt()];
+			table.get(name);
+			appearances.put(id, new Appearance(new String(name, StandardCharsets.UTF_8), new Color(color, true), pixRadius));
+		}
+	}
+
+	/**
+	 * @return how the particle with the given id was drawn when it was recorded, or null if the recording doesn't say
+	 */
+	public Appearance getAppearance(long id) {
+		return appearances.get(id);
+	}
+
+	/**
+	 * @return a mapped window that holds the frame header at <code>offset</code>
+	 */
+	private ByteBuffer windowAt(long offset) throws IOException {
+		if(window == null || offset < windowStart || offset + TrajectoryRecorder.FRAME_HEADER_BYTES > windowStart + window.capacity()) {
+			windowStart = offset;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_BYTES, fileSize - offset));
+			window.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return window;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public double getStartTime() {
+		return (frameCount == 0) ? 0 : indexTimes[0];
+	}
+
+	public double getEndTime() throws IOException {
+		if(frameCount == 0) return 0;
+		return readHeaderTime(offsetOf(frameCount - 1));
+	}
+
+	/**
+	 * @return the last frame recorded at or before <code>time</code>, or 0 if <code>time</code> is before the first
+	 */
+	public int frameAt(double time) throws IOException {
+		if(frameCount == 0) return 0;
+		int entries = (frameCount + INDEX_STRIDE - 1) / INDEX_STRIDE;
+		int entry = Arrays.binarySearch(indexTimes, 0, entries, time);
+		if(entry < 0) entry = Math.max(0, -entry - 2); //the entry before the insertion point
+
+		loadBlock(entry * INDEX_STRIDE);
+		int frame = entry * INDEX_STRIDE;
+		int end = Math.min(frameCount, frame + INDEX_STRIDE);
+		while(frame + 1 < end && readHeaderTime(blockOffsets[frame + 1 - blockStart]) <= time) frame++;
+		return frame;
+	}
+
+	/**
+	 * Reads frame <code>k</code> into <code>into</code>, growing its arrays if needed.
+	 * @return <code>into</code>
+	 */
+	public ReplayFrame readFrame(int k, ReplayFrame into) throws IOException {
+		if(k < 0 || k >= frameCount) throw new IndexOutOfBoundsException("frame " + k + " of " + frameCount);
+		long offset = offsetOf(k);
+
+		ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(header, offset);
+		int bytes = header.getInt(0);
+		int n = header.getInt(4);
+
+		if(frameBuffer.capacity() < bytes) frameBuffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		frameBuffer.clear();
+		frameBuffer.limit(bytes);
+		readFully(frameBuffer, offset);
+		frameBuffer.position(TrajectoryRecorder.FRAME_HEADER_BYTES);
+
+		into.ensureCapacity(n);
+		into.index = k;
+		into.count = n;
+		into.step = header.getLong(8);
+		into.timeElapsed = header.getDouble(16);
+		frameBuffer.asLongBuffer().get(into.ids, 0, n);
+		frameBuffer.position(frameBuffer.position() + 8 * n);
+		getDoubles(into.x, n);
+		getDoubles(into.y, n);
+		getDoubles(into.vx, n);
+		getDoubles(into.vy, n);
+		return into;
+	}
+
+	private void getDoubles(double[] values, int n) {
+		frameBuffer.asDoubleBuffer().get(values, 0, n);
+		frameBuffer.position(frameBuffer.position() + 8 * n);
+	}
+
+	private long offsetOf(int k) throws IOException {
+		if(blockStart < 0 || k < blockStart || k >= blockStart + INDEX_STRIDE) loadBlock(k - k % INDEX_STRIDE);
+		return blockOffsets[k - blockStart];
+	}
+
+	/**
+	 * Scans the headers of the stride of frames starting at <code>first</code> to find their offsets.
+	 */
+	private void loadBlock(int first) throws IOException {
+		if(first == blockStart) return;
+		ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		long offset = indexOffsets[first / INDEX_STRIDE];
+		int end = Math.min(frameCount, first + INDEX_STRIDE);
+		for(int k = first; k < end; k++) {
+			blockOffsets[k - first] = offset;
+			if(k + 1 < end) {
+				size.clear();
+				readFully(size, offset);
+				offset += size.getInt(0);
+			}
+		}
+		blockStart = first;
+	}
+
+	private double readHeaderTime(long offset) throws IOException {
+		ByteBuffer time = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(time, offset + 16);
+		return time.getDouble(0);
+	}
+
+	private void readFully(ByteBuffer buffer, long offset) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, offset);
+			if(read < 0) throw new IOException(file + " ends in the middle of a frame");
+			offset += read;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * How a recorded particle was drawn.
+	 */
+	public static class Appearance {
+		public final String name;
+		public final Color color;
+		public final int pixRadius;
+
+		Appearance(String name, Color color, int pixRadius) {
+			this.name = name;
+			this.color = color;
+			this.pixRadius = pixRadius;
+		}
+	}
+
+	/**
+	 * The contents of one recorded frame.
+	 */
+	public static class ReplayFrame {
+		public int index;
+		public int count;
+		public long step;
+		public double timeElapsed;
+		public long[] ids = new long[0];
+		public double[] x = new double[0];
+		public double[] y = new double[0];
+		public double[] vx = new double[0];
+		public double[] vy = new double[0];
+
+		void ensureCapacity(int n) {
+			if(x.length >= n) return;
+			ids = new long[n];
+			x = new double[n];
+			y = new double[n];
+			vx = new double[n];
+			vy = new double[n];
+		}
+	}
+
+}
@@ -0,0 +1,304 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * TrajectoryRecorder
+ * Appends the positions and velocities of every particle, every <code>interval</code> steps, to a
+ * trajectory file, so a long run's full history can be kept on disk instead of in its trails.
+ * <p>
+ * The stepping thread only copies the store's columns into a frame taken from a small pool and
+ * hands it to a background writer, which appends it to the file through a memory-mapped window
+ * that is moved along as the file grows. The stepping thread waits only if every pooled frame is
+ * still waiting to be written.
+ * <p>
+ * All values are little-endian.
+ * <pre>
+ * header (32 bytes):
+ *   magic number, the ASCII bytes "ORBR" (4), format version (2), reserved (2),
+ *   number of frames (8, or 0 if the recording wasn't closed properly), reserved (16)
+ * each frame:
+ *   size of the frame in bytes (4), number of particles n (4), step number (8), time elapsed (8),
+ *   then n particle ids (8-byte longs) and n each of x, y, x velocity and y velocity (doubles),
+ *   then the number of particles m whose ids haven't been in an earlier frame (4), and for each of them:
+ *   id (8), color as ARGB (4), pixel radius (4), length of the name in bytes (4), name in UTF-8
+ * </pre>
+ * A frame size of 0 marks the end of the frames.
+ * <p>
+ * Ids are only unique within the run that recorded them (see <code>Particle.getId</code>), so how each
+ * particle is drawn is written into the recording the first time its id appears, and a replay never
+ * has to look the ids up in a simulation. Version 1 recordings had no such table.
+ * @author Russell Kaplan
+ *
+ */
+public class TrajectoryRecorder {
+
+	final public static int VERSION = 2;
+	final public static int HEADER_BYTES = 32;
+	final public static int FRAME_HEADER_BYTES = 24;
+	final private static byte[] MAGIC = {'O', 'R', 'B', 'R'};
+	final private static int POOL_SIZE = 8;
+	final private static long WINDOW_BYTES = 16 << 20; //how much of the file is mapped at a time
+
+	private File file;
+	private int interval;
+	private FileChannel channel;
+	private MappedByteBuffer window;
+	private long written; //bytes of the file written so far
+	private volatile long frames;
+	private Set<Long> described = new HashSet<Long>(); //ids whose appearance has been captured, used on the stepping thread
+	private long describedVersion = Long.MIN_VALUE; //the engine's structure version when they were last checked
+
+	private BlockingQueue<Frame> pool;
+	private BlockingQueue<Frame> pending;
+	private Thread writer;
+	private volatile IOException failure;
+	private volatile boolean closed;
+
+	/**
+	 * Creates (or overwrites) <code>file</code> and starts the background writer.
+	 * @param interval record every this many steps
+	 */
+	public TrajectoryRecorder(File file, int interval) throws IOException {
+		this.file = file;
+		this.interval = Math.max(1, interval);
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		mapWindow(0, HEADER_BYTES);
+		window.put(MAGIC);
+		window.putShort((short)VERSION);
+		window.position(HEADER_BYTES);
+		written = HEADER_BYTES;
+
+		pool = new ArrayBlockingQueue<Frame>(POOL_SIZE);
+		pending = new ArrayBlockingQueue<Frame>(POOL_SIZE + 1);
+		for(int i = 0; i < POOL_SIZE; i++) {
+			pool.add(new Frame());
+		}
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeFrames();
+			}
+		}, "Trajectory Writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Records the engine's current state if its step count is a multiple of the interval.
+	 * Called by the engine at the end of each step, on the stepping thread.
+	 */
+	public void stepped(OrbitalEngine engine) {
+		if(closed || engine.getStepCount() % interval != 0) return;
+
+		Frame frame;
+		try {
+			frame = pool.take();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		frame.capture(engine);
+		if(engine.getStructureVersion() != describedVersion) { //only added, merged or replaced particles can be new
+			frame.describeNew(engine.getParticles(), described);
+			describedVersion = engine.getStructureVersion();
+		}
+		pending.add(frame);
+	}
+
+	private void writeFrames() {
+		try {
+			while(true) {
+				Frame frame = pending.take();
+				if(frame.count < 0) return; //closing
+				if(failure == null) {
+					try {
+						write(frame);
+					}
+					catch(IOException e) {
+						failure = e; //keep taking frames so the stepping thread never blocks; report it on close
+					}
+				}
+				pool.add(frame);
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(Frame frame) throws IOException {
+		int n = frame.count;
+		int m = frame.newIds.size();
+		byte[][] names = new byte[m][];
+		int bytes = FRAME_HEADER_BYTES + 40 * n + 4;
+		for(int k = 0; k < m; k++) {
+			names[k] = frame.newNames.get(k).getBytes(StandardCharsets.UTF_8);
+			bytes += 20 + names[k].length;
+		}
+		if(window.remaining() < bytes + 4) mapWindow(written, bytes + 4); //+4 to leave room for the end marker
+
+		window.putInt(bytes);
+		window.putInt(n);
+		window.putLong(frame.step);
+		window.putDouble(frame.timeElapsed);
+		window.asLongBuffer().put(frame.ids, 0, n);
+		window.position(window.position() + 8 * n);
+		putDoubles(frame.x, n);
+		putDoubles(frame.y, n);
+		putDoubles(frame.vx, n);
+		putDoubles(frame.vy, n);
+		window.putInt(m);
+		for(int k = 0; k < m; k++) {
+			window.putLong(frame.newIds.get(k));
+			window.putInt(frame.newColors.get(k));
+			window.putInt(frame.newPixRadii.get(k));
+			window.putInt(names[k].length);
+			window.put(names[k]);
+		}
+		written += bytes;
+		frames++;
+	}
+
+	private void putDoubles(double[] values, int n) {
+		window.asDoubleBuffer().put(values, 0, n);
+		window.position(window.position() + 8 * n);
+	}
+
+	/**
+	 * Maps a new window of the file starting at <code>start</code>, big enough for at least <code>minimum</code> bytes.
+	 */
+	private void mapWindow(long start, long minimum) throws IOException {
+		if(window != null) window.force();
+		window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.max(WINDOW_BYTES, minimum));
+		window.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes any frames still waiting, fills in the header and trims the file to the frames written.
+	 * @throws IOException if any frame could not be written
+	 */
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+
+		Frame end = new Frame();
+		end.count = -1;
+		try {
+			pending.put(end);
+			writer.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			window.force();
+			window = null;
+
+			ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			count.putLong(frames);
+			count.flip();
+			channel.write(count, 8);
+			channel.truncate(written); //drop the unused end of the last window (on Windows this fails until the mapping is collected)
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+		if(failure != null) throw failure;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return how many frames have been written so far
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * One recorded step, copied out of the engine so it can be written without holding up the next step.
+	 */
+	private static class Frame {
+		int count;
+		long step;
+		double timeElapsed;
+		long[] ids = new long[0];
+		double[] x = new double[0];
+		double[] y = new double[0];
+		double[] vx = new double[0];
+		double[] vy = new double[0];
+		//particles appearing in the recording for the first time:
+		List<Long> newIds = new ArrayList<Long>();
+		List<Integer> newColors = new ArrayList<Integer>();
+		List<Integer> newPixRadii = new ArrayList<Integer>();
+		List<String> newNames = new ArrayList<String>();
+
+		void capture(OrbitalEngine engine) {
+			ParticleStore store = engine.getStore();
+			List<Particle> particles = engine.getParticles();
+			int n = store.size;
+			if(x.length < n) {
+				ids = new long[store.capacity()];
+				x = new double[store.capacity()];
+				y = new double[store.capacity()];
+				vx = new double[store.capacity()];
+				vy = new double[store.capacity()];
+			}
+			for(int i = 0; i < n; i++) {
+				ids[i] = particles.get(i).getId();
+			}
+			System.arraycopy(store.x, 0, x, 0, n);
+			System.arraycopy(store.y, 0, y, 0, n);
+			System.arraycopy(store.vx, 0, vx, 0, n);
+			System.arraycopy(store.vy, 0, vy, 0, n);
+			count = n;
+			step = engine.getStepCount();
+			timeElapsed = engine.getTimeElapsed();
+			newIds.clear();
+			newColors.clear();
+			newPixRadii.clear();
+			newNames.clear();
+		}
+
+		/**
+		 * Adds how each of <code>particles</code> not yet in <code>described</code> is drawn to this frame, and adds it to <code>described</code>.
+		 */
+		void describeNew(List<Particle> particles, Set<Long> described) {
+			for(Particle p : particles) {
+				if(!described.add(p.getId())) continue;
+				newIds.add(p.getId());
+				newColors.add(p.getColor().getRGB());
+				newPixRadii.add(p.getPixRadius());
+				newNames.add((p.getName() != null) ? p.getName() : "");
+			}
+		}
+	}
+
+}
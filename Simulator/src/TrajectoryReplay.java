@@ -0,0 +1,133 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.opensourcephysics.display.Drawable;
+import org.opensourcephysics.frames.DisplayFrame;
+
+/**
+ * TrajectoryReplay
+ * Plays back a recorded trajectory in a <code>DisplayFrame</code>, forwards or backwards at any
+ * speed, by reading frames from a <code>TrajectoryReader</code> instead of computing any physics.
+ * <p>
+ * Each recorded particle is drawn by a <code>Particle</code> that looks the way the recording says it
+ * was drawn, or like a small gray dot in recordings that don't say (those made before version 2).
+ * Trails are cleared whenever the replay jumps or changes direction, so they only ever show the
+ * path just played.
+ * @author Russell Kaplan
+ *
+ */
+public class TrajectoryReplay {
+
+	final private static Color UNKNOWN_COLOR = Color.GRAY;
+	final private static int UNKNOWN_PIX_RADIUS = 3;
+
+	private TrajectoryReader reader;
+	private TrajectoryReader.ReplayFrame current = new TrajectoryReader.ReplayFrame();
+	private Map<Long, Particle> shown = new HashMap<Long, Particle>(); //particles being drawn, by id
+	private ParticleLayer layer = new ParticleLayer();
+	private int lastDirection;
+
+	public TrajectoryReplay(TrajectoryReader reader) throws IOException {
+		this.reader = reader;
+		if(reader.getFrameCount() > 0) reader.readFrame(0, current);
+	}
+
+	/**
+	 * Moves to the last frame recorded at or before <code>time</code>.
+	 */
+	public void seek(double time) throws IOException {
+		if(reader.getFrameCount() == 0) return;
+		reader.readFrame(reader.frameAt(time), current);
+		clearTrails();
+	}
+
+	/**
+	 * Moves <code>frames</code> frames forwards (or backwards if negative), stopping at either end.
+	 * @return false if the replay was already at the end it was moving towards
+	 */
+	public boolean advance(int frames) throws IOException {
+		if(reader.getFrameCount() == 0 || frames == 0) return false;
+		int target = Math.max(0, Math.min(reader.getFrameCount() - 1, current.index + frames));
+		if(target == current.index) return false;
+
+		int direction = (frames > 0) ? 1 : -1;
+		if(direction != lastDirection) clearTrails();
+		lastDirection = direction;
+		reader.readFrame(target, current);
+		return true;
+	}
+
+	/**
+	 * Makes <code>frame</code> draw the particles of the current frame, replacing everything it drew before.
+	 */
+	public void show(DisplayFrame frame) {
+		boolean changed = false;
+		for(int i = 0; i < current.count; i++) {
+			long id = current.ids[i];
+			Particle p = shown.get(id);
+			if(p == null) {
+				p = createParticle(id, current.x[i], current.y[i], current.vx[i], current.vy[i]);
+				shown.put(id, p);
+				changed = true;
+			}
+			p.setXVel(current.vx[i]);
+			p.setYVel(current.vy[i]);
+			p.showPosition(current.x[i], current.y[i]);
+		}
+
+		if(shown.size() != current.count) { //some particles merged since (or hadn't yet merged at) the previous frame
+			Map<Long, Boolean> present = new HashMap<Long, Boolean>(2 * current.count);
+			for(int i = 0; i < current.count; i++) {
+				present.put(current.ids[i], Boolean.TRUE);
+			}
+			for(Iterator<Long> it = shown.keySet().iterator(); it.hasNext();) {
+				if(!present.containsKey(it.next())) it.remove();
+			}
+			changed = true;
+		}
+
+		if(changed) layer.setParticles(shown.values());
+		if(!frame.getDrawables().contains(layer)) {
+			for(Drawable d : frame.getDrawables()) {
+				frame.removeDrawable(d);
+			}
+			frame.addDrawable(layer);
+		}
+		frame.setMessage("Replay: t = " + current.timeElapsed + " (step " + current.step + ")");
+	}
+
+	private Particle createParticle(long id, double x, double y, double vx, double vy) {
+		TrajectoryReader.Appearance appearance = reader.getAppearance(id);
+		Particle p;
+		if(appearance != null) p = new Particle(appearance.name, x, y, vx, vy, 0, appearance.pixRadius, appearance.color);
+		else p = new Particle("#" + id, x, y, vx, vy, 0, UNKNOWN_PIX_RADIUS, UNKNOWN_COLOR);
+		p.getTrail().clear();
+		return p;
+	}
+
+	private void clearTrails() {
+		for(Particle p : shown.values()) {
+			p.getTrail().clear();
+		}
+	}
+
+	public double getTime() {
+		return current.timeElapsed;
+	}
+
+	public int getFrameIndex() {
+		return current.index;
+	}
+
+	public TrajectoryReader getReader() {
+		return reader;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
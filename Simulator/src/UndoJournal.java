@@ -0,0 +1,307 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * UndoJournal
+ * The simulation's undo history: a stack of <code>SimulationState</code>s that stores only what
+ * changed between one state and the next, and forgets the oldest states once it holds more than
+ * its memory budget.
+ * <p>
+ * The oldest state is kept whole. Every later one is a delta from the state below it: which
+ * particles were removed, which were changed, and which were added at the end, with the old
+ * versions of anything removed or changed so the delta can be undone again. Particles that didn't
+ * change (matched by <code>Particle.getId</code>) are shared between states rather than copied.
+ * Only the top state is kept whole, so pushing and popping each take time proportional to the
+ * number of particles but memory only proportional to what changed.
+ * @author Russell Kaplan
+ *
+ */
+public class UndoJournal {
+
+	final public static long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+	final private static int PARTICLE_BYTES = 256; //rough size of a Particle without its trail's points
+	final private static int REFERENCE_BYTES = 8;
+
+	private List<Entry> entries; //oldest first
+	private Particle[] top; //the particles of the newest state
+	private long budgetBytes;
+	private long usedBytes;
+
+	public UndoJournal() {
+		this(DEFAULT_BUDGET_BYTES);
+	}
+
+	public UndoJournal(long budgetBytes) {
+		this.entries = new ArrayList<Entry>();
+		this.top = new Particle[0];
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * Adds <code>state</code> to the top of the history, evicting the oldest states if the history is now over budget.
+	 * The journal keeps <code>state</code>'s particles, so they must not be changed afterwards.
+	 */
+	public void push(SimulationState state) {
+		Particle[] next = state.getParticleArray();
+		Entry entry = (entries.isEmpty()) ? null : diff(top, next);
+		if(entry == null) { //the first state, or one too different to be worth a delta
+			entry = new Entry();
+			entry.keyframe = next;
+			entry.bytes = bytesOf(next) + REFERENCE_BYTES * next.length;
+			top = next;
+		}
+		else top = apply(entry, top);
+		entry.timeElapsed = state.getTimeElapsed();
+		entry.timeInterval = state.getTimeInterval();
+		entry.gravConstant = state.getGravConstant();
+		entry.elasticCollisions = state.isElasticCollisions();
+
+		entries.add(entry);
+		usedBytes += entry.bytes;
+		evict();
+	}
+
+	/**
+	 * @return the newest state, or null if the history is empty
+	 */
+	public SimulationState peek() {
+		if(entries.isEmpty()) return null;
+		return toState(top, entries.get(entries.size() - 1));
+	}
+
+	/**
+	 * Removes the newest state from the history.
+	 * @return the state removed, or null if the history is empty
+	 */
+	public SimulationState pop() {
+		if(entries.isEmpty()) return null;
+		Entry entry = entries.remove(entries.size() - 1);
+		usedBytes -= entry.bytes;
+		SimulationState popped = toState(top, entry);
+
+		if(entries.isEmpty()) top = new Particle[0];
+		else if(entry.keyframe == null) top = undo(entry, top);
+		else top = rebuild(entries.size() - 1);
+		return popped;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public void clear() {
+		entries.clear();
+		top = new Particle[0];
+		usedBytes = 0;
+	}
+
+	/**
+	 * @return roughly how much memory the history takes up, in bytes
+	 */
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	/**
+	 * @param budgetBytes how much memory the history may take up before its oldest states are forgotten.
+	 * The newest state is always kept, however large it is.
+	 */
+	public void setBudgetBytes(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+		evict();
+	}
+
+	/**
+	 * Forgets the oldest states until the history fits in its budget, folding each forgotten one into the next.
+	 */
+	private void evict() {
+		while(usedBytes > budgetBytes && entries.size() > 1) {
+			Entry oldest = entries.remove(0);
+			Entry next = entries.get(0);
+			usedBytes -= oldest.bytes;
+			if(next.keyframe != null) continue;
+
+			//the next state becomes the oldest, so it must be kept whole, and takes over the particles it shares with the old one:
+			long bytes = next.bytes + oldest.bytes - bytesOf(next.removedParticles) - bytesOf(next.changedFrom);
+			next.keyframe = apply(next, oldest.keyframe);
+			next.removed = null;
+			next.removedParticles = null;
+			next.changed = null;
+			next.changedFrom = null;
+			next.changedTo = null;
+			next.added = null;
+			usedBytes += bytes - next.bytes;
+			next.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Works out the particles of the state at <code>entries.get(index)</code> from the nearest whole state below it.
+	 */
+	private Particle[] rebuild(int index) {
+		int base = index;
+		while(entries.get(base).keyframe == null) base--;
+		Particle[] particles = entries.get(base).keyframe;
+		for(int i = base + 1; i <= index; i++) {
+			particles = apply(entries.get(i), particles);
+		}
+		return particles;
+	}
+
+	/**
+	 * @return the delta that turns <code>previous</code> into <code>next</code>, or null if <code>next</code>
+	 * can't be written as removals, changes in place and additions at the end
+	 */
+	private Entry diff(Particle[] previous, Particle[] next) {
+		//the particles that were already there must come first and in their old order, so one walk along both finds them; the rest are new:
+		boolean[] kept = new boolean[previous.length];
+		int[] keptFrom = new int[next.length]; //where each kept particle was in previous
+		int keptCount = 0;
+		for(int i = 0; keptCount < next.length; keptCount++) {
+			long id = next[keptCount].getId();
+			int j = i;
+			while(j < previous.length && previous[j].getId() != id) j++;
+			if(j == previous.length) break; //new, or out of order, which is checked for below
+			kept[j] = true;
+			keptFrom[keptCount] = j;
+			i = j + 1;
+		}
+		if(containsAny(previous, next, keptCount)) return null; //reordered, or an old particle after a new one
+
+		Entry entry = new Entry();
+		entry.removed = new int[previous.length - keptCount];
+		entry.removedParticles = new Particle[entry.removed.length];
+		for(int i = 0, r = 0; i < previous.length; i++) {
+			if(!kept[i]) {
+				entry.removed[r] = i;
+				entry.removedParticles[r++] = previous[i];
+			}
+		}
+
+		int changedCount = 0;
+		int[] changed = new int[keptCount];
+		for(int k = 0; k < keptCount; k++) {
+			if(!next[k].sameStateAs(previous[keptFrom[k]])) changed[changedCount++] = k;
+		}
+		entry.changed = new int[changedCount];
+		entry.changedFrom = new Particle[changedCount];
+		entry.changedTo = new Particle[changedCount];
+		for(int c = 0; c < changedCount; c++) {
+			int k = changed[c];
+			entry.changed[c] = k;
+			entry.changedFrom[c] = previous[keptFrom[k]];
+			entry.changedTo[c] = next[k];
+		}
+
+		entry.added = new Particle[next.length - keptCount];
+		System.arraycopy(next, keptCount, entry.added, 0, entry.added.length);
+
+		entry.bytes = bytesOf(entry.changedTo) + bytesOf(entry.added)
+				+ REFERENCE_BYTES * (2L * entry.removed.length + 3L * changedCount + entry.added.length);
+		return entry;
+	}
+
+	/**
+	 * @return whether any particle in <code>next</code> from <code>first</code> on has the id of one in <code>previous</code>
+	 */
+	private static boolean containsAny(Particle[] previous, Particle[] next, int first) {
+		if(first == next.length) return false;
+		long maxId = Long.MIN_VALUE;
+		for(Particle p : previous) {
+			maxId = Math.max(maxId, p.getId());
+		}
+		long[] ids = null; //sorted, and only built if some id might be among them
+		for(int k = first; k < next.length; k++) {
+			long id = next[k].getId();
+			if(id > maxId) continue; //newer than every old particle, as particles just added or merged are
+			if(ids == null) {
+				ids = new long[previous.length];
+				for(int i = 0; i < previous.length; i++) {
+					ids[i] = previous[i].getId();
+				}
+				Arrays.sort(ids);
+			}
+			if(Arrays.binarySearch(ids, id) >= 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the particles of the state <code>entry</code> describes, given those of the state below it
+	 */
+	private static Particle[] apply(Entry entry, Particle[] previous) {
+		Particle[] next = new Particle[previous.length - entry.removed.length + entry.added.length];
+		int n = 0;
+		for(int i = 0, r = 0; i < previous.length; i++) {
+			if(r < entry.removed.length && entry.removed[r] == i) r++;
+			else next[n++] = previous[i];
+		}
+		for(int c = 0; c < entry.changed.length; c++) {
+			next[entry.changed[c]] = entry.changedTo[c];
+		}
+		System.arraycopy(entry.added, 0, next, n, entry.added.length);
+		return next;
+	}
+
+	/**
+	 * @return the particles of the state below <code>entry</code>, given those of the state it describes
+	 */
+	private static Particle[] undo(Entry entry, Particle[] next) {
+		int keptCount = next.length - entry.added.length;
+		Particle[] kept = new Particle[keptCount];
+		System.arraycopy(next, 0, kept, 0, keptCount);
+		for(int c = 0; c < entry.changed.length; c++) {
+			kept[entry.changed[c]] = entry.changedFrom[c];
+		}
+
+		Particle[] previous = new Particle[keptCount + entry.removed.length];
+		for(int i = 0, k = 0, r = 0; i < previous.length; i++) {
+			if(r < entry.removed.length && entry.removed[r] == i) previous[i] = entry.removedParticles[r++];
+			else previous[i] = kept[k++];
+		}
+		return previous;
+	}
+
+	private static SimulationState toState(Particle[] particles, Entry entry) {
+		return new SimulationState(particles, entry.timeElapsed, entry.timeInterval, entry.gravConstant, entry.elasticCollisions);
+	}
+
+	private static long bytesOf(Particle[] particles) {
+		long bytes = 0;
+		for(Particle p : particles) {
+			bytes += PARTICLE_BYTES + (p.hasTrail() ? p.getTrail().getPointBytes() : 0);
+		}
+		return bytes;
+	}
+
+	/**
+	 * One state in the history: either whole (<code>keyframe</code>) or a delta from the state below it.
+	 */
+	private static class Entry {
+		Particle[] keyframe;
+
+		int[] removed; //indices in the state below, in increasing order
+		Particle[] removedParticles;
+		int[] changed; //indices in this state, in increasing order
+		Particle[] changedFrom;
+		Particle[] changedTo;
+		Particle[] added; //appended after the particles that were kept
+
+		double timeElapsed;
+		double timeInterval;
+		double gravConstant;
+		boolean elasticCollisions;
+
+		long bytes; //estimated memory held only by this entry
+	}
+
+}
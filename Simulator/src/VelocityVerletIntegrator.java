@@ -0,0 +1,46 @@
+/**
+ * VelocityVerletIntegrator
+ * Second-order symplectic velocity Verlet: positions are advanced using the current velocity
+ * and acceleration, then velocities using the average of the old and new accelerations.
+ * One force evaluation per step.
+ * @author Russell Kaplan
+ *
+ */
+public class VelocityVerletIntegrator extends Integrator {
+
+	private double[] oldXAccels = new double[0];
+	private double[] oldYAccels = new double[0];
+
+	@Override
+	public void step(ParticleStore store, PhysicsKernel kernel, double timeInterval) {
+		int n = store.size;
+		if(oldXAccels.length < n) {
+			oldXAccels = new double[store.capacity()];
+			oldYAccels = new double[store.capacity()];
+		}
+
+		kernel.ensureAccelerations(store);
+
+		double halfDtSquared = timeInterval * timeInterval / 2;
+		for(int i = 0; i < n; i++) {
+			store.x[i] += store.vx[i] * timeInterval + store.ax[i] * halfDtSquared;
+			store.y[i] += store.vy[i] * timeInterval + store.ay[i] * halfDtSquared;
+			oldXAccels[i] = store.ax[i];
+			oldYAccels[i] = store.ay[i];
+		}
+
+		kernel.computeAccelerations(store);
+
+		double halfDt = timeInterval / 2;
+		for(int i = 0; i < n; i++) {
+			store.vx[i] += (oldXAccels[i] + store.ax[i]) * halfDt;
+			store.vy[i] += (oldYAccels[i] + store.ay[i]) * halfDt;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "Velocity Verlet";
+	}
+
+}
@@ -0,0 +1,34 @@
+/**
+ * YoshidaIntegrator
+ * Fourth-order symplectic integrator built from three leapfrog substeps, the middle one
+ * taken backwards in time (H. Yoshida, 1990). Written in kick-first form so the accelerations
+ * at the end of a step are reused by the next, for three force evaluations per step.
+ * @author Russell Kaplan
+ *
+ */
+public class YoshidaIntegrator extends Integrator {
+
+	final private static double CUBE_ROOT_2 = Math.cbrt(2);
+	final private static double W1 = 1 / (2 - CUBE_ROOT_2);
+	final private static double W0 = -CUBE_ROOT_2 / (2 - CUBE_ROOT_2);
+
+	final private static double[] KICKS = {W1 / 2, (W0 + W1) / 2, (W0 + W1) / 2, W1 / 2};
+	final private static double[] DRIFTS = {W1, W0, W1};
+
+	@Override
+	public void step(ParticleStore store, PhysicsKernel kernel, double timeInterval) {
+		kernel.ensureAccelerations(store);
+		for(int i = 0; i < DRIFTS.length; i++) {
+			kernel.kick(store, KICKS[i] * timeInterval);
+			kernel.drift(store, DRIFTS[i] * timeInterval);
+			kernel.computeAccelerations(store);
+		}
+		kernel.kick(store, KICKS[DRIFTS.length] * timeInterval);
+	}
+
+	@Override
+	public String getName() {
+		return "Yoshida";
+	}
+
+}